@@ -13,6 +13,4 @@ psql -v ON_ERROR_STOP=1 --username "$POSTGRES_USER" --dbname schat <<-EOSQL
 	GRANT ALL ON SCHEMA public TO schat;
 EOSQL
 
-psql -v ON_ERROR_STOP=1 --username schat --dbname schat <<-EOSQL
-    CREATE TABLE messages(id bigint primary key, channel text not null, username character varying(32) not null, msg text not null);
-EOSQL
\ No newline at end of file
+# the tables are created by the app, which migrates the schema at startup
@@ -0,0 +1,68 @@
+package net.sohio.chat;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * One notification carrying a message, pushed through a hub to
+ * {@code sockets} in-memory subscribers: history append, one render and
+ * one delivery per subscriber, in each wire format.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FanOutBenchmark {
+    private static class Sink extends Subscriber {
+        private Blackhole bh;
+
+        Sink(Blackhole bh) {
+            this.bh = bh;
+        }
+
+        @Override
+        protected void send(ByteBuffer fragment) {
+            bh.consume(fragment.slice());
+        }
+    }
+
+    @Param({"1", "100", "2000"})
+    public int sockets;
+
+    // by name, since Wire isn't visible to the generated classes
+    @Param({"html", "json", "binary"})
+    public String wire;
+
+    private ChannelHub hub;
+    private long next = 0;
+
+    @Setup
+    public void setup(Blackhole bh) {
+        hub = new ChannelHub(new ChannelRegistry.Channel(1, "general"), new StubDataSource(), Runnable::run);
+        for (int i = 0; i < sockets; i++) {
+            var sink = new Sink(bh);
+            sink.wire = Wire.of(wire);
+            hub.subscribe(sink, -1);
+        }
+    }
+
+    @Benchmark
+    public void notification() {
+        hub.notification(new Message(next++, "robbie", "hello world"));
+    }
+}
@@ -0,0 +1,39 @@
+package net.sohio.chat;
+
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.gson.Gson;
+
+/**
+ * Parsing the message a socket sends when it opens, as
+ * {@link ChatHandler.WebSocketHandler#message} does.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class IncomingMessageBenchmark {
+    private Gson gson = new Gson();
+    private String json = "{\"after\":\"123456789012345678\"}";
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public long parse() {
+        var msg = gson.fromJson(new StringReader(json), ChatHandler.WebSocketHandler.IncomingMessage.class);
+        return Long.parseLong(msg.after());
+    }
+}
@@ -0,0 +1,67 @@
+package net.sohio.chat;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.thymeleaf.ITemplateEngine;
+import org.thymeleaf.context.Context;
+
+/**
+ * Cost of rendering a live-update fragment, the way it was done before
+ * templates were cached (re-parsed every time, rendered to a String) and
+ * the way it is done now (cached, rendered to shared UTF-8 bytes). Divide
+ * the score by {@code messages} for the cost per message.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RenderBenchmark {
+    @Param({"1", "10", "100"})
+    public int messages;
+
+    private List<Message> batch;
+    private ITemplateEngine uncached;
+    private FragmentRenderer renderer;
+
+    @Setup
+    public void setup() {
+        batch = new ArrayList<>(messages);
+        for (int i = 0; i < messages; i++) {
+            batch.add(new Message(i, "robbie", "hello world, this is message number " + i));
+        }
+        uncached = Templates.buildEngine(false);
+        renderer = new FragmentRenderer(Templates.buildEngine(true));
+    }
+
+    @Benchmark
+    public String uncachedString() {
+        var ctx = new Context(Locale.US, Map.of(
+            "liveUpdate", true,
+            "messages", batch.stream().map(Message::toModel).toList()));
+        return uncached.process("chat", Set.of("#messages"), ctx);
+    }
+
+    @Benchmark
+    public ByteBuffer cachedBytes() {
+        return renderer.render(batch);
+    }
+}
@@ -0,0 +1,68 @@
+package net.sohio.chat;
+
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Snowflake minting, alone and with every core fighting over one counter,
+ * both as records and as the raw longs the post path uses.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SnowflakeBenchmark {
+    @State(Scope.Benchmark)
+    public static class Shared {
+        AtomicSnowflake counter = new AtomicSnowflake();
+    }
+
+    @State(Scope.Thread)
+    public static class Local {
+        Snowflake snowflake = new Snowflake(Instant.now(), (short)0);
+        Instant now = Instant.now();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public Snowflake uncontended(Shared shared) {
+        return shared.counter.incrementAndGet(Instant.now());
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public Snowflake contended(Shared shared) {
+        return shared.counter.incrementAndGet(Instant.now());
+    }
+
+    @Benchmark
+    @Threads(1)
+    public long uncontendedPrimitive(Shared shared) {
+        return shared.counter.next();
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public long contendedPrimitive(Shared shared) {
+        return shared.counter.next();
+    }
+
+    @Benchmark
+    public Snowflake increment(Local local) {
+        // a fixed clock keeps it on the same-millisecond path
+        local.snowflake = local.snowflake.increment(local.now);
+        return local.snowflake;
+    }
+}
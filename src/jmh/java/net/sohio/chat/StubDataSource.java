@@ -0,0 +1,70 @@
+package net.sohio.chat;
+
+import java.io.PrintWriter;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Statement;
+import java.util.logging.Logger;
+
+import javax.sql.DataSource;
+
+/**
+ * A database with no rows in it, so hubs can be driven without Postgres.
+ */
+class StubDataSource implements DataSource {
+    private static Object stub(Class<?> type) {
+        return Proxy.newProxyInstance(StubDataSource.class.getClassLoader(), new Class<?>[] { type }, (proxy, method, args) -> {
+            var returns = method.getReturnType();
+            if (returns == PreparedStatement.class || returns == Statement.class) return stub(PreparedStatement.class);
+            if (returns == ResultSet.class) return stub(ResultSet.class);
+            if (returns == boolean.class) return false;
+            if (returns == int.class) return 0;
+            if (returns == long.class) return 0L;
+            return null;
+        });
+    }
+
+    @Override
+    public Connection getConnection() {
+        return (Connection)stub(Connection.class);
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) {
+        return getConnection();
+    }
+
+    @Override
+    public PrintWriter getLogWriter() {
+        return null;
+    }
+
+    @Override
+    public void setLogWriter(PrintWriter out) {}
+
+    @Override
+    public void setLoginTimeout(int seconds) {}
+
+    @Override
+    public int getLoginTimeout() {
+        return 0;
+    }
+
+    @Override
+    public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        throw new SQLFeatureNotSupportedException();
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> iface) {
+        return null;
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> iface) {
+        return false;
+    }
+}
@@ -0,0 +1,199 @@
+package net.sohio.chat;
+
+import java.lang.management.ManagementFactory;
+import java.net.CookieManager;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.WebSocket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import io.zonky.test.db.postgres.embedded.EmbeddedPostgres;
+
+/**
+ * Starts a node against a throwaway Postgres and puts it under load:
+ * loadtest.sockets WebSocket clients following one channel, and
+ * loadtest.senders clients each posting loadtest.rate messages a second,
+ * for loadtest.seconds. Reports post throughput, delivery latency measured
+ * from each message's snowflake, and the heap and GC figures of the JVM,
+ * which hosts both the node and the clients.
+ *
+ * Set loadtest.dbUrl (a pgjdbc-ng URL) with net.sohio.chat.db.user and
+ * net.sohio.chat.db.password to run against an existing database instead.
+ *
+ * mvn -Ploadtest compile exec:exec@loadtest -Dloadtest.args="-Dloadtest.sockets=5000"
+ */
+public class LoadTest {
+    private static int sockets = Integer.getInteger("loadtest.sockets", 2000);
+    private static int senders = Integer.getInteger("loadtest.senders", 20);
+    private static int rate = Integer.getInteger("loadtest.rate", 5);
+    private static int seconds = Integer.getInteger("loadtest.seconds", 30);
+    private static int port = Integer.getInteger("loadtest.port", 8089);
+    private static String channel = System.getProperty("loadtest.channel", "general");
+
+    // messages minted earlier were posted while sockets were still connecting
+    private static volatile long measureFrom = Long.MAX_VALUE;
+
+    /**
+     * Delivery latencies in one millisecond buckets, the last one catching
+     * everything slower.
+     */
+    private static class Latencies {
+        private AtomicLongArray buckets = new AtomicLongArray(10_001);
+
+        void record(long millis) {
+            buckets.incrementAndGet((int)Math.min(Math.max(millis, 0), buckets.length() - 1));
+        }
+
+        long count() {
+            long count = 0;
+            for (int i = 0; i < buckets.length(); i++) count += buckets.get(i);
+            return count;
+        }
+
+        long percentile(double p) {
+            long target = (long)Math.ceil(count() * p);
+            long seen = 0;
+            for (int i = 0; i < buckets.length(); i++) {
+                seen += buckets.get(i);
+                if (seen >= target && seen > 0) return i;
+            }
+            return -1;
+        }
+    }
+
+    private static class Socket implements WebSocket.Listener {
+        private Latencies latencies;
+        private StringBuilder partial = new StringBuilder();
+
+        Socket(Latencies latencies) {
+            this.latencies = latencies;
+        }
+
+        @Override
+        public void onOpen(WebSocket ws) {
+            ws.sendText("{\"after\":\"-1\",\"mode\":\"json\"}", true);
+            ws.request(1);
+        }
+
+        @Override
+        public CompletionStage<?> onText(WebSocket ws, CharSequence data, boolean last) {
+            partial.append(data);
+            if (last) {
+                long now = System.currentTimeMillis();
+                int start = 0;
+                while ((start = partial.indexOf("\"id\":\"", start)) >= 0) {
+                    start += 6;
+                    long id = Long.parseLong(partial, start, partial.indexOf("\"", start), 10);
+                    long minted = new Snowflake(id).timestamp().toEpochMilli();
+                    if (minted >= measureFrom) latencies.record(now - minted);
+                }
+                partial.setLength(0);
+            }
+            ws.request(1);
+            return null;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        EmbeddedPostgres pg = null;
+        if (System.getProperty("loadtest.dbUrl") instanceof String url) {
+            System.setProperty("net.sohio.chat.db.url", url);
+        } else {
+            pg = EmbeddedPostgres.builder().start();
+            Migrations.migrate(pg.getPostgresDatabase());
+            try (var con = pg.getPostgresDatabase().getConnection(); var stmt = con.prepareStatement("INSERT INTO channels VALUES (2, ?) ON CONFLICT DO NOTHING")) {
+                stmt.setString(1, channel);
+                stmt.execute();
+            }
+            System.setProperty("net.sohio.chat.db.url", "jdbc:pgsql://localhost:" + pg.getPort() + "/postgres");
+            System.setProperty("net.sohio.chat.db.user", "postgres");
+            System.setProperty("net.sohio.chat.db.password", "");
+        }
+        System.setProperty("net.sohio.chat.devPort", Integer.toString(port));
+        // every client comes from localhost under the same name
+        for (var limit : new String[] { "postsPerSecond", "addressPostsPerSecond", "connectsPerSecond" }) {
+            System.setProperty("net.sohio.chat.limit." + limit, "0");
+        }
+        App.main(new String[0]);
+
+        var base = "http://localhost:" + port + "/chat/" + channel + "/";
+        var client = HttpClient.newHttpClient();
+        var latencies = new Latencies();
+
+        var connecting = new ArrayList<CompletableFuture<WebSocket>>();
+        for (int i = 0; i < sockets; i++) {
+            var socket = new Socket(latencies);
+            connecting.add(client.newWebSocketBuilder().buildAsync(URI.create("ws://localhost:" + port + "/chat/" + channel + "/ws"), socket));
+            // a few at a time, so the handshakes don't all time out together
+            if (connecting.size() % 200 == 0) CompletableFuture.allOf(connecting.toArray(CompletableFuture[]::new)).join();
+        }
+        CompletableFuture.allOf(connecting.toArray(CompletableFuture[]::new)).join();
+        System.out.printf("%d sockets connected%n", sockets);
+
+        long start = System.currentTimeMillis();
+        measureFrom = start;
+
+        var posts = new LongAdder();
+        var failures = new LongAdder();
+        var scheduler = Executors.newScheduledThreadPool(Math.max(1, Math.min(senders, 8)));
+        for (int i = 0; i < senders; i++) {
+            var sender = HttpClient.newBuilder().cookieHandler(new CookieManager()).build();
+            // loading the page is what hands out a name
+            sender.send(HttpRequest.newBuilder(URI.create(base)).build(), HttpResponse.BodyHandlers.discarding());
+
+            int n = i;
+            scheduler.scheduleAtFixedRate(() -> {
+                var body = "msg=" + URLEncoder.encode("load test message from sender " + n, StandardCharsets.UTF_8);
+                var post = HttpRequest.newBuilder(URI.create(base))
+                    .header("Content-Type", "application/x-www-form-urlencoded")
+                    .POST(HttpRequest.BodyPublishers.ofString(body))
+                    .build();
+                sender.sendAsync(post, HttpResponse.BodyHandlers.discarding()).whenComplete((resp, x) -> {
+                    if (x == null && resp.statusCode() == 204) {
+                        posts.increment();
+                    } else {
+                        failures.increment();
+                    }
+                });
+            }, 0, 1_000_000 / rate, TimeUnit.MICROSECONDS);
+        }
+
+        Thread.sleep(seconds * 1000L);
+        scheduler.shutdownNow();
+        // let the last posts arrive
+        Thread.sleep(2000);
+        double elapsed = (System.currentTimeMillis() - start) / 1000.0;
+
+        report(elapsed, posts.sum(), failures.sum(), latencies);
+
+        if (pg != null) pg.close();
+        System.exit(0);
+    }
+
+    private static void report(double elapsed, long posts, long failures, Latencies latencies) {
+        long deliveries = latencies.count();
+        System.out.printf("posts       %d (%.1f/s), %d failed%n", posts, posts / elapsed, failures);
+        System.out.printf("deliveries  %d (%.1f/s)%n", deliveries, deliveries / elapsed);
+        System.out.printf("latency ms  p50 %d, p99 %d, p99.9 %d%n",
+            latencies.percentile(0.5), latencies.percentile(0.99), latencies.percentile(0.999));
+
+        var heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        System.out.printf("heap        %d MiB used, %d MiB committed%n", heap.getUsed() >> 20, heap.getCommitted() >> 20);
+        List<String> gcs = new ArrayList<>();
+        for (var gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            gcs.add(String.format("%s %d (%d ms)", gc.getName(), gc.getCollectionCount(), gc.getCollectionTime()));
+        }
+        System.out.printf("gc          %s%n", String.join(", ", gcs));
+    }
+}
@@ -1,43 +1,78 @@
 package net.sohio.chat;
 
 import java.nio.file.Path;
-import java.sql.SQLException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.Executors;
 
 import org.eclipse.jetty.http2.server.HTTP2CServerConnectionFactory;
+import org.eclipse.jetty.server.ForwardedRequestCustomizer;
 import org.eclipse.jetty.server.HttpConfiguration;
 import org.eclipse.jetty.server.HttpConnectionFactory;
 import org.eclipse.jetty.server.Server;
 import org.eclipse.jetty.server.ServerConnector;
 import org.eclipse.jetty.server.handler.ContextHandler;
 import org.eclipse.jetty.server.handler.ContextHandlerCollection;
-import org.eclipse.jetty.session.DatabaseAdaptor;
 import org.eclipse.jetty.session.DefaultSessionIdManager;
-import org.eclipse.jetty.session.JDBCSessionDataStoreFactory;
-import org.eclipse.jetty.session.NullSessionCacheFactory;
 import org.eclipse.jetty.unixdomain.server.UnixDomainServerConnector;
 import org.eclipse.jetty.util.HostPort;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
-import com.impossibl.postgres.api.jdbc.PGConnection;
 import com.zaxxer.hikari.HikariConfig;
 import com.zaxxer.hikari.HikariDataSource;
 
 /**
- * Hello world!
+ * Entry point of a schat node.
+ *
+ * Several nodes can share one database. Give each a distinct
+ * net.sohio.chat.nodeId and the same net.sohio.chat.nodeBits (8 unless
+ * set), so they mint snowflakes without colliding. Their clocks should
+ * agree to well within net.sohio.chat.lateMillis, how far below the newest
+ * id a node still looks for messages arriving late. Each node keeps one
+ * supervised LISTEN connection feeding its own hubs, and /health reports its load so
+ * the proxy can spread sockets between nodes. For a local test, run two
+ * JVMs with different net.sohio.chat.devPort and nodeId values.
+ *
+ * Startup only does what the first request needs before it listens;
+ * templates warm up on the side. The time from process start to listening
+ * is logged, for comparing the JVM with the native image built by
+ * {@code mvn -Pnative package}.
  */
 public class App {
-    private static HikariDataSource configureDatabase() {
+    private static Logger log = LoggerFactory.getLogger(App.class);
+
+    private static HikariDataSource configureDatabase(PoolMetrics poolMetrics) {
+        var url = System.getProperty("net.sohio.chat.db.url", "jdbc:pgsql:schat?unixsocket=/var/run/postgresql");
+        // pgjdbc-ng reaches unix sockets through netty's epoll transport
+        if (url.contains("unixsocket")) {
+            io.netty.channel.epoll.Epoll.ensureAvailability();
+        }
+
         var dbConfig = new HikariConfig();
+        dbConfig.setMetricsTrackerFactory(poolMetrics);
         dbConfig.setDataSourceClassName("com.impossibl.postgres.jdbc.PGDataSource");
-        dbConfig.addDataSourceProperty("url", "jdbc:pgsql:schat?unixsocket=/var/run/postgresql");
-        dbConfig.addDataSourceProperty("user", "schat");
-        dbConfig.addDataSourceProperty("password", "bruhmoment");
+        dbConfig.addDataSourceProperty("url", url);
+        dbConfig.addDataSourceProperty("user", System.getProperty("net.sohio.chat.db.user", "schat"));
+        dbConfig.addDataSourceProperty("password", System.getProperty("net.sohio.chat.db.password", "bruhmoment"));
+        if (Integer.getInteger("net.sohio.chat.db.poolSize") instanceof Integer poolSize) {
+            dbConfig.setMaximumPoolSize(poolSize);
+        }
         return new HikariDataSource(dbConfig);
     }
 
     public static void main(String[] args) throws Exception {
-        io.netty.channel.epoll.Epoll.ensureAvailability();
+        var warmup = new Thread(Templates::warm, "schat-warmup");
+        warmup.setDaemon(true);
+        warmup.start();
+
+        var threadPool = new QueuedThreadPool();
+        if (Boolean.getBoolean("net.sohio.chat.virtualThreads")) {
+            threadPool.setVirtualThreadsExecutor(Executors.newVirtualThreadPerTaskExecutor());
+        }
 
-        var server = new Server();
+        var server = new Server(threadPool);
         var httpConfiguration = new HttpConfiguration();
         httpConfiguration.setServerAuthority(new HostPort("chat.sohio.net"));
         var httpConnectionFactory = new HttpConnectionFactory(httpConfiguration);
@@ -51,10 +86,13 @@ public class App {
         }
         
         if (System.getProperty("net.sohio.chat.h2cPath") instanceof String path) {
+            // only the proxy can reach the socket, so trust its X-Forwarded-For
+            var proxiedConfiguration = new HttpConfiguration(httpConfiguration);
+            proxiedConfiguration.addCustomizer(new ForwardedRequestCustomizer());
             var connector = new UnixDomainServerConnector(
                 server,
-                httpConnectionFactory,
-                new HTTP2CServerConnectionFactory(httpConfiguration));
+                new HttpConnectionFactory(proxiedConfiguration),
+                new HTTP2CServerConnectionFactory(proxiedConfiguration));
             connector.setUnixDomainPath(Path.of(path));
             server.addConnector(connector);
         }
@@ -63,49 +101,61 @@ public class App {
             throw new RuntimeException("set a dev server port or an h2c path");
         }
 
-        var ds = configureDatabase();
+        var poolMetrics = new PoolMetrics();
+        var ds = configureDatabase(poolMetrics);
 
-        var listenerCon = ds.getConnection();  
-        listenerCon.setAutoCommit(true);
-        try (var stmt = listenerCon.prepareStatement("LISTEN messages")) {
-            stmt.execute();
-        }
+        Migrations.migrate(ds);
+        // null unless net.sohio.chat.archiveDir is set
+        var archive = Archive.configure();
+        server.addBean(new RetentionJob(ds, archive));
+
+        // reconnects on its own, so a database restart doesn't drop sockets
+        var supervisor = new ListenerSupervisor(ds);
+        server.addBean(supervisor);
         
-        AtomicSnowflake counter;
+        // a single node can use every low bit for its sequence
+        boolean multiNode = System.getProperty("net.sohio.chat.nodeId") != null;
+        int nodeBits = Integer.getInteger("net.sohio.chat.nodeBits", multiNode ? 8 : 0);
+        long nodeId = Long.getLong("net.sohio.chat.nodeId", 0);
+
+        // start past the newest stored id, so a restart within the same
+        // millisecond can't mint it again. Partitions are appended in id
+        // order, so this only reads the newest one's index.
+        Snowflake newest = null;
         try (var con = ds.getConnection()) {
             con.setAutoCommit(true);
             try (var stmt = con.prepareStatement("SELECT id FROM messages ORDER BY id DESC LIMIT 1")) {
                 var rs = stmt.executeQuery();
-                counter = new AtomicSnowflake(new Snowflake(rs.getLong("id")));
+                if (rs.next()) newest = new Snowflake(rs.getLong("id"));
             }
-        } catch (SQLException ex) {
-            counter = new AtomicSnowflake();
         }
+        var counter = new AtomicSnowflake(newest, nodeBits, nodeId);
 
         var chatHandler = new ContextHandler(
             ChatHandler.from(
                 server,
                 ds,
-                listenerCon.unwrap(PGConnection.class),
+                archive,
+                supervisor,
                 counter),
             "/chat");
         chatHandler.setAllowNullPathInContext(true);
-        server.setHandler(new ContextHandlerCollection(chatHandler));
+        var healthHandler = new ContextHandler(new HealthHandler(nodeId, supervisor), "/health");
+        healthHandler.setAllowNullPathInContext(true);
+        var metricsHandler = new ContextHandler(new MetricsHandler(poolMetrics), "/metrics");
+        metricsHandler.setAllowNullPathInContext(true);
+        server.setHandler(new ContextHandlerCollection(chatHandler, healthHandler, metricsHandler));
 
         var idMgr = new DefaultSessionIdManager(server);
+        // tags session ids with the node that created them
+        idMgr.setWorkerName("node" + nodeId);
         server.addBean(idMgr, true);
 
-        var cacheFactory = new NullSessionCacheFactory();
-        cacheFactory.setFlushOnResponseCommit(true);
-        cacheFactory.setRemoveUnloadableSessions(true);
-        server.addBean(cacheFactory);
-
-        var dbAdaptor = new DatabaseAdaptor();
-        dbAdaptor.setDatasource(ds);
-        var datastoreFactory = new JDBCSessionDataStoreFactory();
-        datastoreFactory.setDatabaseAdaptor(dbAdaptor);
-        server.addBean(datastoreFactory);
+        Sessions.configure(server, ds);
 
         server.start();
+
+        ProcessHandle.current().info().startInstant().ifPresent(started ->
+            log.info("listening {} ms after process start", Duration.between(started, Instant.now()).toMillis()));
     }
 }
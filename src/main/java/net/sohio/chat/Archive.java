@@ -0,0 +1,298 @@
+package net.sohio.chat;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Cold history: the messages of retired partitions, kept in append-only
+ * segment files under net.sohio.chat.archiveDir, one directory per
+ * channel.
+ *
+ * A segment holds one channel's messages in id order, each laid out as
+ * the binary wire format lays it out: the snowflake, then the username
+ * and the message as a 32-bit length and UTF-8 bytes. It is named after
+ * its first snowflake in hex, so listing a directory sorts its segments,
+ * and archiving the same rows twice writes the same files. A segment is
+ * written under a temporary name, synced, renamed into place and never
+ * changed again.
+ *
+ * Reads go through a memory mapping of each segment and a sparse index of
+ * every 64th snowflake, built when the segment is first read. A channel's
+ * directory is listed again whenever its modification time changes, so
+ * months archived by another node show up without a restart.
+ */
+class Archive {
+    private static int INDEX_EVERY = 64;
+    // a mapping covers at most 2 GiB, so segments roll over well before
+    private static long segmentBytes = Long.getLong("net.sohio.chat.archiveSegmentBytes", 256L << 20);
+
+    private static LongAdder reads = new LongAdder();
+
+    /**
+     * One mapped segment and its sparse index.
+     */
+    private static class Segment {
+        private Path path;
+        private ByteBuffer map;
+        private long[] ids = new long[16];
+        private int[] offsets = new int[16];
+        private int entries = 0;
+
+        Segment(Path path) throws IOException {
+            this.path = path;
+            try (var file = FileChannel.open(path, StandardOpenOption.READ)) {
+                map = file.map(FileChannel.MapMode.READ_ONLY, 0, file.size());
+            }
+
+            int n = 0;
+            for (int offset = 0; offset < map.limit(); offset = next(offset), n++) {
+                if (n % INDEX_EVERY != 0) continue;
+                if (entries == ids.length) {
+                    ids = Arrays.copyOf(ids, entries * 2);
+                    offsets = Arrays.copyOf(offsets, entries * 2);
+                }
+                ids[entries] = map.getLong(offset);
+                offsets[entries] = offset;
+                entries++;
+            }
+        }
+
+        long first() {
+            return entries > 0 ? ids[0] : Long.MAX_VALUE;
+        }
+
+        private int next(int offset) {
+            int at = offset + 8;
+            at += 4 + map.getInt(at);
+            return at + 4 + map.getInt(at);
+        }
+
+        private Message read(int offset) {
+            long id = map.getLong(offset);
+            var username = string(offset + 8);
+            var msg = string(offset + 12 + map.getInt(offset + 8));
+            return new Message(id, username, msg);
+        }
+
+        private String string(int at) {
+            var bytes = new byte[map.getInt(at)];
+            map.get(at + 4, bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        /**
+         * Up to {@code limit} messages older than {@code before}, oldest
+         * first.
+         */
+        List<Message> before(long before, int limit) {
+            // the first index entry at or past before; everything older
+            // lies in the blocks ahead of it
+            int k = Arrays.binarySearch(ids, 0, entries, before);
+            if (k < 0) k = -k - 1;
+            if (k == 0) return List.of();
+
+            // the last block may hold just one older message, so start far
+            // enough back to still find limit of them
+            int from = Math.max(0, k - 1 - (limit / INDEX_EVERY + 1));
+            int end = k < entries ? offsets[k] : map.limit();
+
+            var found = new int[16];
+            int count = 0;
+            for (int offset = offsets[from]; offset < end && map.getLong(offset) < before; offset = next(offset)) {
+                if (count == found.length) found = Arrays.copyOf(found, count * 2);
+                found[count++] = offset;
+            }
+
+            var messages = new ArrayList<Message>(Math.min(count, limit));
+            for (int i = Math.max(0, count - limit); i < count; i++) {
+                messages.add(read(found[i]));
+            }
+            return messages;
+        }
+    }
+
+    /**
+     * Writes one channel's messages, which must come in id order. None of
+     * them can be read until {@link #close}.
+     */
+    class Writer {
+        private Path channelDir;
+        private long channelId;
+        private Path segment;
+        private FileChannel file;
+        private DataOutputStream out;
+        private long size;
+
+        private Writer(long channelId) throws IOException {
+            this.channelId = channelId;
+            this.channelDir = dir.resolve(Long.toString(channelId));
+            Files.createDirectories(channelDir);
+        }
+
+        public void append(Message message) throws IOException {
+            if (out == null || size >= segmentBytes) roll(message.id());
+
+            var username = message.username().getBytes(StandardCharsets.UTF_8);
+            var msg = message.msg().getBytes(StandardCharsets.UTF_8);
+            out.writeLong(message.id());
+            out.writeInt(username.length);
+            out.write(username);
+            out.writeInt(msg.length);
+            out.write(msg);
+            size += 16 + username.length + msg.length;
+        }
+
+        private void roll(long first) throws IOException {
+            seal();
+            segment = channelDir.resolve(String.format("%016x.seg", first));
+            file = FileChannel.open(temporary(segment),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(file), 65536));
+            size = 0;
+        }
+
+        private void seal() throws IOException {
+            if (out == null) return;
+            out.flush();
+            file.force(true);
+            out.close();
+            out = null;
+            Files.move(temporary(segment), segment, StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        /**
+         * Syncs the last segment and puts it in place.
+         */
+        public void close() throws IOException {
+            seal();
+            // read the directory again next time
+            segments.remove(channelId);
+        }
+
+        /**
+         * Throws away the segment being written. Those already sealed stay,
+         * and the same rows archived again replace them.
+         */
+        public void abort() {
+            if (out == null) return;
+            try {
+                out.close();
+                Files.deleteIfExists(temporary(segment));
+            } catch (IOException ex) {
+                // the next attempt truncates it anyway
+            }
+            out = null;
+        }
+    }
+
+    /**
+     * A channel's segments as of the directory's modification time.
+     */
+    private static record Listing(FileTime modified, List<Segment> segments) {}
+
+    private Path dir;
+    private ConcurrentHashMap<Long, Listing> segments = new ConcurrentHashMap<>();
+
+    Archive(Path dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * The archive in net.sohio.chat.archiveDir, or null if it isn't set.
+     */
+    public static Archive configure() throws IOException {
+        var dir = System.getProperty("net.sohio.chat.archiveDir");
+        if (dir == null) return null;
+
+        var path = Path.of(dir);
+        Files.createDirectories(path);
+        return new Archive(path);
+    }
+
+    public static long reads() {
+        return reads.sum();
+    }
+
+    private static Path temporary(Path segment) {
+        return segment.resolveSibling(segment.getFileName() + ".tmp");
+    }
+
+    public Writer writer(long channelId) throws IOException {
+        return new Writer(channelId);
+    }
+
+    /**
+     * Up to {@code limit} archived messages of a channel older than
+     * {@code before}, oldest first.
+     */
+    public List<Message> before(long channelId, long before, int limit) {
+        var chunks = new ArrayList<List<Message>>();
+        int wanted = limit;
+        var list = segments(channelId);
+        for (int i = list.size() - 1; i >= 0 && wanted > 0; i--) {
+            if (list.get(i).first() >= before) continue;
+            var chunk = list.get(i).before(before, wanted);
+            chunks.add(chunk);
+            wanted -= chunk.size();
+        }
+        reads.increment();
+
+        var messages = new ArrayList<Message>(limit - wanted);
+        for (int i = chunks.size() - 1; i >= 0; i--) {
+            messages.addAll(chunks.get(i));
+        }
+        return messages;
+    }
+
+    private List<Segment> segments(long channelId) {
+        var channelDir = dir.resolve(Long.toString(channelId));
+        try {
+            FileTime modified;
+            try {
+                modified = Files.getLastModifiedTime(channelDir);
+            } catch (NoSuchFileException ex) {
+                // nothing archived yet, which may change any time
+                return List.of();
+            }
+
+            var listing = segments.get(channelId);
+            if (listing != null && listing.modified().equals(modified)) return listing.segments();
+
+            // segments never change once in place, so mapped ones are kept
+            var mapped = new HashMap<Path, Segment>();
+            if (listing != null) {
+                for (var segment : listing.segments()) {
+                    mapped.put(segment.path, segment);
+                }
+            }
+            try (var files = Files.list(channelDir)) {
+                var list = new ArrayList<Segment>();
+                for (var path : files.filter(path -> path.toString().endsWith(".seg")).sorted().toList()) {
+                    var segment = mapped.get(path);
+                    list.add(segment != null ? segment : new Segment(path));
+                }
+                segments.put(channelId, new Listing(modified, list));
+                return list;
+            }
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+}
@@ -1,26 +1,75 @@
 package net.sohio.chat;
 
 import java.time.Instant;
-import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * Mints snowflakes with a single CAS on a primitive, so minting neither
+ * locks nor allocates.
+ *
+ * The low 16 bits of a snowflake are split into a node id in the top
+ * {@code nodeBits} and a per-millisecond sequence in the rest. Processes
+ * with different node ids can mint at the same time without colliding.
+ * When a millisecond's sequence runs out, minting borrows the next
+ * millisecond instead of waiting for the clock.
+ */
 public class AtomicSnowflake {
-    private AtomicReference<Snowflake> snowflake;
+    public static int MAX_NODE_BITS = 12;
+
+    private AtomicLong last;
+    private long nodePart;
+    private long sequenceMask;
 
     public AtomicSnowflake() {
-        snowflake = new AtomicReference<>();
+        this(null, 0, 0);
     }
 
     public AtomicSnowflake(Snowflake start) {
-        snowflake = new AtomicReference<>(start);
+        this(start, 0, 0);
+    }
+
+    public AtomicSnowflake(Snowflake start, int nodeBits, long node) throws IllegalArgumentException {
+        if (nodeBits < 0 || nodeBits > MAX_NODE_BITS)
+            throw new IllegalArgumentException("node bits must be between 0 and " + MAX_NODE_BITS);
+        if (node < 0 || node >= (1L << nodeBits))
+            throw new IllegalArgumentException("node id does not fit in " + nodeBits + " bits");
+
+        int sequenceBits = 16 - nodeBits;
+        sequenceMask = (1L << sequenceBits) - 1;
+        nodePart = node << sequenceBits;
+
+        // we cannot know which sequences of the start's millisecond this node
+        // already used, so treat all of them as taken
+        last = new AtomicLong(start == null ? -1 : (start.rep() & ~0xFFFFL) | nodePart | sequenceMask);
     }
 
     public Snowflake incrementAndGet(Instant timestamp) {
-        return snowflake.updateAndGet(s -> {
-            if (s == null) {
-                return new Snowflake(timestamp, (short)0);
+        return new Snowflake(next(Snowflake.tsOf(timestamp)));
+    }
+
+    /**
+     * The next snowflake for the current time, as its raw representation.
+     */
+    public long next() {
+        return next(System.currentTimeMillis() - Snowflake.EPOCH.toEpochMilli());
+    }
+
+    long next(long now) {
+        if (now < 0 || now >= (1L << 47))
+            throw new IllegalArgumentException("timestamp is out of range");
+
+        long prev, next;
+        do {
+            prev = last.get();
+            long ts = prev >>> 16;
+            if (prev < 0 || now > ts) {
+                next = (now << 16) | nodePart;
+            } else if ((prev & sequenceMask) == sequenceMask) {
+                next = ((ts + 1) << 16) | nodePart;
             } else {
-                return s.increment(timestamp);
+                next = prev + 1;
             }
-        });
+        } while (!last.compareAndSet(prev, next));
+        return next;
     }
 }
@@ -0,0 +1,178 @@
+package net.sohio.chat;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.sql.DataSource;
+
+import org.eclipse.jetty.util.Callback;
+import org.eclipse.jetty.util.component.AbstractLifeCycle;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Group commit for posted messages.
+ *
+ * Posts are queued and written by a single thread. A batch closes once it
+ * is {@code batchSize} long or its first post has waited {@code linger}.
+ * Each batch is one multi-row INSERT plus its notifications in one
+ * transaction. A post's callback completes only after its batch commits.
+ * A batch that fails for any reason fails its own posts and nothing else;
+ * the writer goes on with the next one.
+ */
+class BatchWriter extends AbstractLifeCycle {
+    private static record Post(ChannelRegistry.Channel channel, Message message, Callback cb) {}
+
+    private static Logger log = LoggerFactory.getLogger(BatchWriter.class);
+
+    private static String ROW = "(?, ?, ?, ?)";
+
+    private DataSource ds;
+    private Duration linger;
+    private int batchSize;
+    private boolean notifyPayloads;
+    private BlockingQueue<Post> queue = new LinkedBlockingQueue<>();
+    private Thread thread;
+
+    public BatchWriter(DataSource ds, Duration linger, int batchSize, boolean notifyPayloads) {
+        if (batchSize < 1)
+            throw new IllegalArgumentException("batch size must be positive");
+        this.ds = ds;
+        this.linger = linger;
+        this.batchSize = batchSize;
+        this.notifyPayloads = notifyPayloads;
+    }
+
+    public void submit(ChannelRegistry.Channel channel, Message message, Callback cb) {
+        if (!isRunning()) {
+            cb.failed(new IllegalStateException("batch writer is not running"));
+            return;
+        }
+        queue.add(new Post(channel, message, cb));
+    }
+
+    @Override
+    protected void doStart() throws Exception {
+        thread = new Thread(this::run, "schat-batch-writer");
+        thread.setDaemon(true);
+        thread.start();
+        super.doStart();
+    }
+
+    @Override
+    protected void doStop() throws Exception {
+        thread.interrupt();
+        thread.join();
+        super.doStop();
+    }
+
+    private void run() {
+        var batch = new ArrayList<Post>(batchSize);
+        while (true) {
+            try {
+                batch.add(queue.take());
+                long deadline = System.nanoTime() + linger.toNanos();
+                while (batch.size() < batchSize) {
+                    var post = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if (post == null) break;
+                    batch.add(post);
+                }
+            } catch (InterruptedException ex) {
+                // flush whatever is left before stopping
+                queue.drainTo(batch);
+                for (int i = 0; i < batch.size(); i += batchSize) {
+                    write(batch.subList(i, Math.min(i + batchSize, batch.size())));
+                }
+                return;
+            }
+            try {
+                write(batch);
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void write(List<Post> batch) {
+        if (batch.isEmpty()) return;
+
+        try (var con = ds.getConnection()) {
+            con.setAutoCommit(false);
+            try {
+                insert(con, batch);
+                notify(con, batch);
+                con.commit();
+            } catch (SQLException | RuntimeException ex) {
+                con.rollback();
+                throw ex;
+            }
+        } catch (Throwable ex) {
+            for (var post : batch) {
+                complete(post, ex);
+            }
+            return;
+        }
+
+        for (var post : batch) {
+            complete(post, null);
+        }
+    }
+
+    private static void complete(Post post, Throwable failure) {
+        try {
+            if (failure != null)
+                post.cb().failed(failure);
+            else
+                post.cb().succeeded();
+        } catch (Throwable ex) {
+            // one post's callback must not stop the others or the writer
+            log.warn("post callback failed", ex);
+        }
+    }
+
+    private void insert(Connection con, List<Post> batch) throws SQLException {
+        var sql = new StringBuilder("INSERT INTO messages VALUES ");
+        for (int i = 0; i < batch.size(); i++) {
+            if (i > 0) sql.append(", ");
+            sql.append(ROW);
+        }
+
+        try (var stmt = con.prepareStatement(sql.toString())) {
+            int i = 1;
+            for (var post : batch) {
+                stmt.setLong(i++, post.message().id());
+                stmt.setLong(i++, post.channel().id());
+                stmt.setString(i++, post.message().username());
+                stmt.setString(i++, post.message().msg());
+            }
+            stmt.execute();
+        }
+    }
+
+    private void notify(Connection con, List<Post> batch) throws SQLException {
+        try (var stmt = con.prepareStatement("SELECT pg_notify('messages', ?)")) {
+            if (notifyPayloads) {
+                for (var post : batch) {
+                    stmt.setString(1, Notification.encode(post.channel().name(), post.message()));
+                    stmt.execute();
+                }
+            } else {
+                var channels = new LinkedHashSet<String>();
+                for (var post : batch) {
+                    channels.add(post.channel().name());
+                }
+                for (var channel : channels) {
+                    stmt.setString(1, channel);
+                    stmt.execute();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package net.sohio.chat;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+
+import javax.sql.DataSource;
+
+/**
+ * The single listener for the messages channel. Routes each notification to
+ * the hub of the channel it names, which processes it on the given
+ * executor, and feeds it to the search index. After the LISTEN connection
+ * comes back, every hub and the index read back what they missed.
+ */
+class Broadcaster implements ListenerSupervisor.Listener {
+    public static record Subscription(ChannelRegistry.Channel channel, Subscriber socket, long after) {}
+
+    private DataSource ds;
+    private Archive archive;
+    private SearchIndex search;
+    private Executor executor;
+    private ConcurrentHashMap<String, ChannelHub> hubs = new ConcurrentHashMap<>();
+
+    public Broadcaster(DataSource ds, Archive archive, SearchIndex search, Executor executor) {
+        this.ds = ds;
+        this.archive = archive;
+        this.search = search;
+        this.executor = executor;
+    }
+
+    public ChannelHub hub(ChannelRegistry.Channel channel) {
+        return hubs.computeIfAbsent(channel.name(), name -> new ChannelHub(channel, ds, archive, executor));
+    }
+
+    /**
+     * Subscribes sockets to several channels at once. Hubs nobody has
+     * looked at yet are seeded with one query across all their channels,
+     * and sockets that their hubs cannot catch up from memory are caught up
+     * with one more, instead of a query or two per channel.
+     */
+    public void subscribe(List<Subscription> subscriptions) {
+        var cold = new LinkedHashMap<Long, ChannelHub>();
+        for (var subscription : subscriptions) {
+            var hub = hub(subscription.channel());
+            if (!hub.seeded()) cold.put(subscription.channel().id(), hub);
+        }
+        if (cold.size() > 1) {
+            var newest = fetchNewest(cold.keySet());
+            for (var entry : cold.entrySet()) {
+                entry.getValue().seed(newest.getOrDefault(entry.getKey(), List.of()));
+            }
+        }
+
+        var misses = new ArrayList<Subscription>();
+        for (var subscription : subscriptions) {
+            if (!hub(subscription.channel()).covers(subscription.after())) misses.add(subscription);
+        }
+
+        Map<Long, List<Message>> prefetched = misses.size() > 1 ? fetchAfter(misses) : Map.of();
+        for (var subscription : subscriptions) {
+            hub(subscription.channel()).subscribe(
+                subscription.socket(),
+                subscription.after(),
+                prefetched.get(subscription.channel().id()));
+        }
+    }
+
+    private Map<Long, List<Message>> fetchAfter(List<Subscription> subscriptions) {
+        var channelIds = new Long[subscriptions.size()];
+        var afters = new Long[subscriptions.size()];
+        for (int i = 0; i < subscriptions.size(); i++) {
+            channelIds[i] = subscriptions.get(i).channel().id();
+            afters[i] = subscriptions.get(i).after();
+        }
+
+        try (var con = ds.getConnection()) {
+            con.setAutoCommit(true);
+            try (var stmt = con.prepareStatement("""
+                    SELECT m.channelId, m.id, m.username, m.msg
+                    FROM messages m JOIN unnest(?::int8[], ?::int8[]) AS c(channelId, after)
+                        ON m.channelId = c.channelId AND m.id > c.after
+                    ORDER BY m.channelId, m.id""")) {
+                stmt.setArray(1, con.createArrayOf("int8", channelIds));
+                stmt.setArray(2, con.createArrayOf("int8", afters));
+                var rs = stmt.executeQuery();
+                // a channel without new rows is caught up too
+                var messages = new HashMap<Long, List<Message>>();
+                for (var channelId : channelIds) {
+                    messages.put(channelId, new ArrayList<>());
+                }
+                while (rs.next()) {
+                    messages.get(rs.getLong("channelId")).add(Message.from(rs));
+                }
+                return messages;
+            }
+        } catch (SQLException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /**
+     * The newest messages of each channel, as many as a hub keeps, oldest
+     * first.
+     */
+    private Map<Long, List<Message>> fetchNewest(Collection<Long> channelIds) {
+        try (var con = ds.getConnection()) {
+            con.setAutoCommit(true);
+            try (var stmt = con.prepareStatement("""
+                    SELECT c.channelId, m.id, m.username, m.msg
+                    FROM unnest(?::int8[]) AS c(channelId) CROSS JOIN LATERAL (
+                        SELECT id, username, msg FROM messages
+                        WHERE channelId = c.channelId ORDER BY id DESC LIMIT ?) m
+                    ORDER BY c.channelId, m.id""")) {
+                stmt.setArray(1, con.createArrayOf("int8", channelIds.toArray(Long[]::new)));
+                stmt.setInt(2, ChannelHub.historySize());
+                var rs = stmt.executeQuery();
+                var messages = new HashMap<Long, List<Message>>();
+                while (rs.next()) {
+                    messages.computeIfAbsent(rs.getLong("channelId"), id -> new ArrayList<>()).add(Message.from(rs));
+                }
+                return messages;
+            }
+        } catch (SQLException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /**
+     * Sends out every channel's presence changes.
+     */
+    public void tick() {
+        for (var hub : hubs.values()) {
+            hub.tick();
+        }
+    }
+
+    @Override
+    public void notification(String payload) {
+        Metrics.notification();
+        var notification = Notification.decode(payload);
+        var hub = hubs.get(notification.channel());
+        if (hub != null) hub.dispatch(notification);
+        if (search != null) search.dispatch(notification);
+    }
+
+    @Override
+    public void reconnected() {
+        for (var hub : hubs.values()) {
+            hub.replay();
+        }
+        if (search != null) search.replay();
+    }
+}
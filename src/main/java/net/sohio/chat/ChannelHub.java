@@ -0,0 +1,443 @@
+package net.sohio.chat;
+
+import java.nio.ByteBuffer;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+import javax.sql.DataSource;
+
+/**
+ * Fans new messages in one channel out to every subscribed socket.
+ *
+ * The hub keeps a cursor at the newest snowflake it has delivered. A
+ * notification fetches the rows past the cursor once, renders them once and
+ * hands the same fragment to every socket that is caught up to the cursor.
+ * Only sockets that lag behind it run their own catch-up query.
+ *
+ * Ids are minted before their rows commit, so a message can turn up after
+ * newer ones have gone out. One at or below the cursor that the hub has
+ * not seen is still kept and delivered, late. A notification without the
+ * message reads back net.sohio.chat.lateMillis below the cursor to find
+ * such rows.
+ *
+ * Once anyone has looked at the channel, the hub also keeps its recent
+ * history in memory, fed by the same notifications. Pages older than
+ * anything left in the database come from the archive, if there is one.
+ *
+ * Notifications are processed in order on the hub's own serial executor,
+ * never on the thread of the LISTEN connection.
+ */
+class ChannelHub {
+    private static int historySize = Integer.getInteger("net.sohio.chat.historySize", 500);
+    private static int WIRES = Wire.values().length;
+
+    private ChannelRegistry.Channel channel;
+    private DataSource ds;
+    private Archive archive;
+    private SerialExecutor notifications;
+    private FragmentRenderer renderer = new FragmentRenderer();
+    private Set<Subscriber> subscribers = new HashSet<>();
+    private RecentHistory history = new RecentHistory(historySize);
+    private Presence presence = new Presence();
+    private boolean seeded = false;
+    private long cursor = -1;
+
+    /**
+     * How many of a channel's newest messages a hub keeps in memory.
+     */
+    static int historySize() {
+        return historySize;
+    }
+
+    public ChannelHub(ChannelRegistry.Channel channel, DataSource ds, Executor executor) {
+        this(channel, ds, null, executor);
+    }
+
+    public ChannelHub(ChannelRegistry.Channel channel, DataSource ds, Archive archive, Executor executor) {
+        this.channel = channel;
+        this.ds = ds;
+        this.archive = archive;
+        this.notifications = new SerialExecutor(executor);
+    }
+
+    public void dispatch(Notification notification) {
+        notifications.execute(() -> {
+            if (notification.hasMessage()) {
+                notification(notification.message());
+            } else if (notification.id() != null) {
+                notification(notification.id());
+            } else {
+                notification();
+            }
+        });
+    }
+
+    public void subscribe(Subscriber socket, long after) {
+        subscribe(socket, after, null);
+    }
+
+    /**
+     * Subscribes a socket that has already read the rows past
+     * {@code after}. Anything published since is caught up as usual.
+     */
+    public synchronized void subscribe(Subscriber socket, long after, List<Message> prefetched) {
+        if (!subscribers.add(socket)) return;
+        Metrics.subscribed(channel.name(), 1);
+
+        seed();
+        socket.lastSnowflake = after;
+        if (prefetched != null && !prefetched.isEmpty()) {
+            socket.deliver(encode(socket.wire, prefetched), prefetched.get(prefetched.size() - 1).id());
+        }
+        catchUp(socket);
+
+        // everyone else hears of the join on the next tick
+        if (socket.username != null) presence.join(socket.username);
+        socket.send(socket.wire == Wire.HTML
+            ? renderer.renderPresence(presence.online(), presence.typing())
+            : socket.wire.presence(presence.snapshot()));
+    }
+
+    /**
+     * Whether a socket subscribing with {@code after} can be caught up from
+     * memory.
+     */
+    public synchronized boolean covers(long after) {
+        seed();
+        return history.covers(after);
+    }
+
+    public synchronized boolean seeded() {
+        return seeded;
+    }
+
+    /**
+     * Seeds the history with the channel's newest messages, oldest first,
+     * read along with other channels'. Does nothing once seeded.
+     */
+    public synchronized void seed(List<Message> newest) {
+        if (seeded) return;
+
+        history.seed(newest);
+        if (!newest.isEmpty()) {
+            cursor = Math.max(cursor, newest.get(newest.size() - 1).id());
+        }
+        seeded = true;
+    }
+
+    public synchronized void unsubscribe(Subscriber socket) {
+        if (!subscribers.remove(socket)) return;
+        Metrics.subscribed(channel.name(), -1);
+        if (socket.username != null) presence.leave(socket.username);
+    }
+
+    public synchronized void typing(Subscriber socket) {
+        if (socket.username != null && subscribers.contains(socket)) presence.typing(socket.username, System.currentTimeMillis());
+    }
+
+    public synchronized void stoppedTyping(String username) {
+        presence.stoppedTyping(username);
+    }
+
+    /**
+     * Sends what changed in the channel's presence since the last tick to
+     * every socket, as one frame each.
+     */
+    public synchronized void tick() {
+        var delta = presence.tick(System.currentTimeMillis());
+        if (delta == null || subscribers.isEmpty()) return;
+
+        var fragments = new ByteBuffer[WIRES];
+        for (var socket : subscribers) {
+            int wire = socket.wire.ordinal();
+            if (fragments[wire] == null) {
+                fragments[wire] = socket.wire == Wire.HTML
+                    ? renderer.renderPresence(presence.online(), presence.typing())
+                    : socket.wire.presence(delta);
+            }
+            socket.send(fragments[wire]);
+        }
+        Metrics.presence();
+    }
+
+    public synchronized RecentHistory.Window recent() {
+        seed();
+        return history.window();
+    }
+
+    /**
+     * A page of up to {@code limit} messages older than {@code before},
+     * oldest first.
+     */
+    public List<Message> page(long before, int limit) {
+        List<Message> messages;
+        synchronized (this) {
+            seed();
+            messages = history.before(before, limit);
+        }
+        if (messages == null) messages = fetchBefore(before, limit);
+
+        // a short page has run out of hot rows
+        if (archive != null && messages.size() < limit) {
+            var archived = archive.before(channel.id(), messages.isEmpty() ? before : messages.get(0).id(), limit - messages.size());
+            if (!archived.isEmpty()) {
+                archived.addAll(messages);
+                messages = archived;
+            }
+        }
+        return messages;
+    }
+
+    /**
+     * The messages with the given snowflakes, oldest first, from the
+     * database or, for retired months, the archive. Those in neither are
+     * left out.
+     */
+    public List<Message> messages(long[] ids) {
+        var found = fetchByIds(ids);
+        if (archive != null && found.size() < ids.length) {
+            var stored = new HashSet<Long>();
+            for (var message : found) {
+                stored.add(message.id());
+            }
+            for (long id : ids) {
+                if (stored.contains(id)) continue;
+                var archived = archive.before(channel.id(), id + 1, 1);
+                if (!archived.isEmpty() && archived.get(0).id() == id) found.add(archived.get(0));
+            }
+            found.sort(Comparator.comparingLong(Message::id));
+        }
+        return found;
+    }
+
+    /**
+     * Every archived message of the channel, oldest first.
+     */
+    public List<Message> archived() {
+        return archive != null ? archive.before(channel.id(), Long.MAX_VALUE, Integer.MAX_VALUE) : List.of();
+    }
+
+    public synchronized void notification() {
+        if (!seeded) return;
+
+        // from a little below the cursor, for rows that committed late;
+        // anything under the floor can't be told apart from what was sent
+        long start = System.nanoTime();
+        long from = Math.max(history.floor(), Notification.lateFrom(cursor));
+        var messages = fetchAfter(from);
+        Metrics.query.observeSince(start);
+
+        int split = 0;
+        while (split < messages.size() && messages.get(split).id() <= cursor) {
+            split++;
+        }
+        late(messages.subList(0, split));
+        publish(messages.subList(split, messages.size()));
+    }
+
+    public synchronized void notification(Message message) {
+        if (!seeded) return;
+
+        if (message.id() <= cursor) late(List.of(message));
+        else publish(List.of(message));
+    }
+
+    public synchronized void notification(long id) {
+        if (!seeded || id <= history.floor() || history.has(id)) return;
+
+        long start = System.nanoTime();
+        var message = fetchById(id);
+        Metrics.query.observeSince(start);
+        if (message != null) notification(message);
+    }
+
+    private void publish(List<Message> messages) {
+        if (messages.isEmpty()) return;
+
+        long previous = cursor;
+        cursor = messages.get(messages.size() - 1).id();
+        for (var message : messages) {
+            history.append(message);
+        }
+        if (subscribers.isEmpty()) return;
+
+        // encoded once per wire format in use
+        var fragments = new ByteBuffer[WIRES];
+        for (var socket : subscribers) {
+            if (socket.lastSnowflake == previous) {
+                int wire = socket.wire.ordinal();
+                if (fragments[wire] == null) fragments[wire] = encode(socket.wire, messages);
+                socket.deliver(fragments[wire], cursor);
+            } else if (socket.lastSnowflake > previous) {
+                // subscribed between the insert and its notification
+                var unseen = messages.stream().filter(m -> m.id() > socket.lastSnowflake).toList();
+                if (!unseen.isEmpty()) {
+                    socket.deliver(encode(socket.wire, unseen), cursor);
+                }
+            } else {
+                catchUp(socket);
+            }
+        }
+        for (var message : messages) {
+            Metrics.delivered(message.id());
+        }
+    }
+
+    /**
+     * Keeps and sends out messages at or below the cursor that the history
+     * doesn't have yet. Sockets past them get them out of order; a socket
+     * behind them gets them with its next catch-up.
+     */
+    private void late(List<Message> messages) {
+        var unseen = new ArrayList<Message>();
+        for (var message : messages) {
+            if (history.append(message)) unseen.add(message);
+        }
+        if (unseen.isEmpty()) return;
+
+        long newest = unseen.get(unseen.size() - 1).id();
+        var fragments = new ByteBuffer[WIRES];
+        for (var socket : subscribers) {
+            if (socket.lastSnowflake >= newest) {
+                int wire = socket.wire.ordinal();
+                if (fragments[wire] == null) fragments[wire] = encode(socket.wire, unseen);
+                socket.send(fragments[wire]);
+            } else {
+                var passed = unseen.stream().filter(m -> m.id() < socket.lastSnowflake).toList();
+                if (!passed.isEmpty()) socket.send(encode(socket.wire, passed));
+            }
+        }
+        for (var message : unseen) {
+            Metrics.delivered(message.id());
+        }
+    }
+
+    /**
+     * Reads back whatever was committed while notifications were not
+     * arriving, in order with any notifications already queued.
+     */
+    public void replay() {
+        notifications.execute(this::notification);
+    }
+
+    private void seed() {
+        if (!seeded) seed(fetchNewest(history.capacity()));
+    }
+
+    private void catchUp(Subscriber socket) {
+        var messages = history.after(socket.lastSnowflake);
+        if (messages == null) {
+            messages = fetchAfter(socket.lastSnowflake);
+        }
+        if (messages.isEmpty()) return;
+
+        socket.deliver(encode(socket.wire, messages), messages.get(messages.size() - 1).id());
+    }
+
+    private ByteBuffer encode(Wire wire, List<Message> messages) {
+        return switch (wire) {
+            case HTML -> renderer.render(messages);
+            case JSON -> Wire.json(messages);
+            case BINARY -> Wire.binary(messages);
+        };
+    }
+
+    private List<Message> fetchAfter(long after) {
+        try (var con = ds.getConnection()) {
+            con.setAutoCommit(true);
+            try (var stmt = con
+                    .prepareStatement("SELECT id, username, msg FROM messages WHERE id > ? AND channelId = ? ORDER BY id")) {
+                stmt.setLong(1, after);
+                stmt.setLong(2, channel.id());
+                var rs = stmt.executeQuery();
+                var messages = new ArrayList<Message>();
+                while (rs.next()) {
+                    messages.add(Message.from(rs));
+                }
+                return messages;
+            }
+        } catch (SQLException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    private List<Message> fetchBefore(long before, int limit) {
+        try (var con = ds.getConnection()) {
+            con.setAutoCommit(true);
+            try (var stmt = con
+                    .prepareStatement("SELECT id, username, msg FROM messages WHERE id < ? AND channelId = ? ORDER BY id DESC LIMIT ?")) {
+                stmt.setLong(1, before);
+                stmt.setLong(2, channel.id());
+                stmt.setInt(3, limit);
+                var rs = stmt.executeQuery();
+                var messages = new ArrayList<Message>();
+                while (rs.next()) {
+                    messages.add(Message.from(rs));
+                }
+                Collections.reverse(messages);
+                return messages;
+            }
+        } catch (SQLException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    private List<Message> fetchNewest(int limit) {
+        try (var con = ds.getConnection()) {
+            con.setAutoCommit(true);
+            try (var stmt = con
+                    .prepareStatement("SELECT id, username, msg FROM messages WHERE channelId = ? ORDER BY id DESC LIMIT ?")) {
+                stmt.setLong(1, channel.id());
+                stmt.setInt(2, limit);
+                var rs = stmt.executeQuery();
+                var messages = new ArrayList<Message>();
+                while (rs.next()) {
+                    messages.add(Message.from(rs));
+                }
+                Collections.reverse(messages);
+                return messages;
+            }
+        } catch (SQLException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    private List<Message> fetchByIds(long[] ids) {
+        try (var con = ds.getConnection()) {
+            con.setAutoCommit(true);
+            try (var stmt = con.prepareStatement("SELECT id, username, msg FROM messages WHERE id = ANY(?) AND channelId = ? ORDER BY id")) {
+                stmt.setArray(1, con.createArrayOf("int8", Arrays.stream(ids).boxed().toArray(Long[]::new)));
+                stmt.setLong(2, channel.id());
+                var rs = stmt.executeQuery();
+                var messages = new ArrayList<Message>();
+                while (rs.next()) {
+                    messages.add(Message.from(rs));
+                }
+                return messages;
+            }
+        } catch (SQLException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    private Message fetchById(long id) {
+        try (var con = ds.getConnection()) {
+            con.setAutoCommit(true);
+            try (var stmt = con.prepareStatement("SELECT id, username, msg FROM messages WHERE id = ? AND channelId = ?")) {
+                stmt.setLong(1, id);
+                stmt.setLong(2, channel.id());
+                var rs = stmt.executeQuery();
+                return rs.next() ? Message.from(rs) : null;
+            }
+        } catch (SQLException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package net.sohio.chat;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+import javax.sql.DataSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * In-memory copy of the channels table.
+ *
+ * Loaded once at startup and reloaded whenever a trigger on the table sends
+ * a NOTIFY on the channels channel, so request handling can resolve names
+ * and build the sidebar without touching the database. Reloads run on a
+ * serial executor, never on the thread of the LISTEN connection.
+ */
+class ChannelRegistry implements ListenerSupervisor.Listener {
+    public static record Channel(long id, String name) {}
+
+    private static record Snapshot(Map<String, Channel> byName, Map<String, List<Map<String, Object>>> sidebars) {}
+
+    private static Logger log = LoggerFactory.getLogger(ChannelRegistry.class);
+
+    private DataSource ds;
+    private SerialExecutor reloads;
+    private volatile Snapshot snapshot;
+
+    public ChannelRegistry(DataSource ds, Executor executor) throws SQLException {
+        this.ds = ds;
+        this.reloads = new SerialExecutor(executor);
+        reload();
+    }
+
+    public Channel lookup(String name) {
+        return snapshot.byName().get(name);
+    }
+
+    /**
+     * Sidebar entries for a page showing {@code current}. Links are relative
+     * to the channel's own path.
+     */
+    public List<Map<String, Object>> sidebar(String current) {
+        return snapshot.sidebars().getOrDefault(current, List.of());
+    }
+
+    public synchronized void reload() throws SQLException {
+        var channels = new ArrayList<Channel>();
+        try (var con = ds.getConnection()) {
+            con.setAutoCommit(true);
+            try (var stmt = con.prepareStatement("SELECT id, name FROM channels ORDER BY id")) {
+                var rs = stmt.executeQuery();
+                while (rs.next()) {
+                    channels.add(new Channel(rs.getLong("id"), rs.getString("name")));
+                }
+            }
+        }
+
+        var byName = new LinkedHashMap<String, Channel>();
+        for (var channel : channels) {
+            byName.put(channel.name(), channel);
+        }
+
+        var sidebars = new HashMap<String, List<Map<String, Object>>>();
+        for (var current : channels) {
+            var sidebar = new ArrayList<Map<String, Object>>();
+            for (var channel : channels) {
+                var channelInfo = new HashMap<String, Object>();
+                channelInfo.put("name", channel.name());
+                if (channel != current)
+                    channelInfo.put("href", String.format("../%s/", channel.name()));
+                sidebar.add(Map.copyOf(channelInfo));
+            }
+            sidebars.put(current.name(), List.copyOf(sidebar));
+        }
+
+        snapshot = new Snapshot(Map.copyOf(byName), Map.copyOf(sidebars));
+    }
+
+    @Override
+    public void notification(String payload) {
+        reloads.execute(() -> {
+            try {
+                reload();
+            } catch (SQLException ex) {
+                // keep serving the old list until the next change or reconnect
+                log.warn("could not reload the channels", ex);
+            }
+        });
+    }
+
+    @Override
+    public void reconnected() {
+        // the table may have changed while nobody was listening
+        notification("");
+    }
+}
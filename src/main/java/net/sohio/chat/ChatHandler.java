@@ -1,140 +1,232 @@
 package net.sohio.chat;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.Reader;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.sql.SQLException;
 import java.time.Duration;
-import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
 
 import javax.sql.DataSource;
 
 import org.eclipse.jetty.http.HttpHeader;
 import org.eclipse.jetty.http.HttpStatus;
 import org.eclipse.jetty.http.pathmap.UriTemplatePathSpec;
+import org.eclipse.jetty.io.Content;
 import org.eclipse.jetty.server.Handler;
 import org.eclipse.jetty.server.Request;
 import org.eclipse.jetty.server.Response;
 import org.eclipse.jetty.server.Server;
-import org.eclipse.jetty.session.SessionHandler;
 import org.eclipse.jetty.util.Callback;
+import org.eclipse.jetty.util.VirtualThreads;
 import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.StatusCode;
 import org.eclipse.jetty.websocket.api.annotations.OnWebSocketClose;
 // import org.eclipse.jetty.websocket.api.annotations.OnWebSocketError;
 import org.eclipse.jetty.websocket.api.annotations.OnWebSocketMessage;
 import org.eclipse.jetty.websocket.api.annotations.OnWebSocketOpen;
 import org.eclipse.jetty.websocket.api.annotations.WebSocket;
+import org.eclipse.jetty.websocket.server.ServerUpgradeRequest;
+import org.eclipse.jetty.websocket.server.ServerUpgradeResponse;
 import org.eclipse.jetty.websocket.server.WebSocketUpgradeHandler;
-import org.thymeleaf.ITemplateEngine;
-import org.thymeleaf.TemplateEngine;
 import org.thymeleaf.context.Context;
-import org.thymeleaf.templatemode.TemplateMode;
-import org.thymeleaf.templateresolver.ClassLoaderTemplateResolver;
 
 import com.google.gson.Gson;
-import com.impossibl.postgres.api.jdbc.PGConnection;
-import com.impossibl.postgres.api.jdbc.PGNotificationListener;
 
 public class ChatHandler extends Handler.Abstract {
+    @FunctionalInterface
+    private static interface BlockingWork {
+        void run() throws Exception;
+    }
+
     private DataSource ds;
     private AtomicSnowflake counter;
+    private ChannelRegistry registry;
+    private Broadcaster broadcaster;
+    private BatchWriter batchWriter;
+    private SearchIndex search;
+    private Executor executor;
+    private PageCache pageCache = new PageCache();
+
+    // on by default with several nodes, so a post costs each node no reads
+    private static boolean notifyPayloads = Boolean.parseBoolean(System.getProperty(
+        "net.sohio.chat.notifyPayloads",
+        Boolean.toString(System.getProperty("net.sohio.chat.nodeId") != null)));
+    // 0 renders the whole channel on page load
+    private static int pageSize = Integer.getInteger("net.sohio.chat.pageSize", 100);
+    private static int searchPageSize = Integer.getInteger("net.sohio.chat.searchPageSize", 50);
+    // 0 commits every post on its own
+    private static int batchMillis = Integer.getInteger("net.sohio.chat.batchMillis", 0);
+    private static int batchSize = Integer.getInteger("net.sohio.chat.batchSize", 100);
+    private static boolean cachePages = Boolean.parseBoolean(System.getProperty("net.sohio.chat.pageCache", "true"));
+    // off sends each shared fragment as is instead of compressing it per socket
+    private static boolean deflate = Boolean.parseBoolean(System.getProperty("net.sohio.chat.ws.deflate", "true"));
 
     private static UriTemplatePathSpec nakedSpec = new UriTemplatePathSpec("/{channel}");
     private static UriTemplatePathSpec baseSpec = new UriTemplatePathSpec("/{channel}/");
     private static UriTemplatePathSpec pathSpec = new UriTemplatePathSpec("/{channel}/{endpoint}");
-    private static ITemplateEngine templateEngine = buildTemplateEngine();
+    private static UriTemplatePathSpec muxSpec = new UriTemplatePathSpec("/ws");
 
-    private ChatHandler(DataSource ds, AtomicSnowflake counter) {
+    private ChatHandler(DataSource ds, AtomicSnowflake counter, ChannelRegistry registry, Broadcaster broadcaster, BatchWriter batchWriter, SearchIndex search, Executor executor) {
         this.ds = ds;
         this.counter = counter;
+        this.registry = registry;
+        this.broadcaster = broadcaster;
+        this.batchWriter = batchWriter;
+        this.search = search;
+        this.executor = executor;
     }
 
-    public static Handler from(Server server, DataSource ds, PGConnection listenerCon, AtomicSnowflake counter) {
+    public static Handler from(Server server, DataSource ds, Archive archive, ListenerSupervisor supervisor, AtomicSnowflake counter) throws SQLException {
+        // null unless App configured virtual threads
+        var executor = VirtualThreads.getVirtualThreadsExecutor(server.getThreadPool());
+
+        Executor background = executor != null ? executor : server.getThreadPool();
+        var registry = new ChannelRegistry(ds, background);
+        var search = SearchIndex.configure(ds, background);
+        if (search != null) server.addBean(search);
+        var broadcaster = new Broadcaster(ds, archive, search, background);
+        supervisor.listen("channels", registry);
+        supervisor.listen("messages", broadcaster);
+        server.addBean(new PresenceTicker(broadcaster));
+
+        BatchWriter batchWriter = null;
+        if (batchMillis > 0) {
+            batchWriter = new BatchWriter(ds, Duration.ofMillis(batchMillis), batchSize, notifyPayloads);
+            server.addBean(batchWriter);
+        }
 
         var ws = WebSocketUpgradeHandler.from(server, container -> {
+            container.addMapping(muxSpec, (req, res, cb) -> {
+                if (!FloodControl.connectsPerAddress.tryAcquire(Request.getRemoteAddr(req))) {
+                    FloodControl.tooManyRequests(res, cb);
+                    return null;
+                }
+
+                if (!deflate) withoutDeflate(req, res);
+                return new MuxSocketHandler(registry, broadcaster, Sessions.existingUsername(req));
+            });
             container.addMapping(pathSpec, (req, res, cb) -> {
                 var params = pathSpec.getPathParams(Request.getPathInContext(req));
                 if (!"ws".equals(params.get("endpoint"))) return null;
 
-                return new WebSocketHandler(params.get("channel"), ds, listenerCon);
+                if (!FloodControl.connectsPerAddress.tryAcquire(Request.getRemoteAddr(req))) {
+                    FloodControl.tooManyRequests(res, cb);
+                    return null;
+                }
+
+                var channel = registry.lookup(params.get("channel"));
+                if (channel == null) {
+                    res.setStatus(HttpStatus.NOT_FOUND_404);
+                    cb.succeeded();
+                    return null;
+                }
+
+                if (!deflate) withoutDeflate(req, res);
+                return new WebSocketHandler(broadcaster.hub(channel), Sessions.existingUsername(req));
             });
         });
-        ws.setHandler(new ChatHandler(ds, counter));
+        ws.setHandler(new ChatHandler(ds, counter, registry, broadcaster, batchWriter, search, executor));
 
-        var session = new SessionHandler();
-        session.setHandler(ws);
-
-        return session;
+        return Sessions.wrap(ws);
     }
 
-    private static ITemplateEngine buildTemplateEngine() {
-        var resolver = new ClassLoaderTemplateResolver();
-
-        resolver.setTemplateMode(TemplateMode.HTML);
-        resolver.setPrefix("/net/sohio/chat/templates/");
-        resolver.setSuffix(".html");
-        resolver.setCacheable(false);
-
-        var engine = new TemplateEngine();
-        engine.setTemplateResolver(resolver);
-        return engine;
+    private static void withoutDeflate(ServerUpgradeRequest req, ServerUpgradeResponse res) {
+        res.setExtensions(req.getExtensions().stream()
+            .filter(extension -> !"permessage-deflate".equals(extension.getName()))
+            .toList());
     }
 
     @WebSocket
-    public static class WebSocketHandler implements PGNotificationListener {
-        private static record IncomingMessage(String after) {}
+    public static class WebSocketHandler extends Subscriber {
+        static record IncomingMessage(String after, String mode, Boolean typing) {}
 
         private static int FRESH = 0;
         private static int LISTENING = 1;
         private static int CLOSED = 2;
 
         private static Gson gson = new Gson();
+        static AtomicInteger connected = new AtomicInteger();
 
-        private String channel; 
-        private DataSource ds;
-        private PGConnection listenerCon;
+        private ChannelHub hub;
         private Session session;
+        private OutboundQueue outbound;
         private int listening = FRESH;
-        private long lastSnowflake = -1;
 
-        public WebSocketHandler(String channel, DataSource ds, PGConnection listenerCon) throws SQLException {
-            this.channel = channel;
-            this.ds = ds;
-            this.listenerCon = listenerCon;
+        public WebSocketHandler(ChannelHub hub, String username) {
+            this.hub = hub;
+            this.username = username;
         }
 
         @OnWebSocketOpen
         public synchronized void open(Session session) {
             this.session = session;
             session.setIdleTimeout(Duration.ZERO);
+            connected.incrementAndGet();
         }
 
-        @OnWebSocketMessage
-        public synchronized void message(Reader message) {
-            if (listening != FRESH) return;
-            listening = LISTENING;
+        /**
+         * Sockets currently open on this node.
+         */
+        static int connected() {
+            return connected.get();
+        }
 
+        @OnWebSocketMessage
+        public void message(Reader message) {
             var msg = gson.fromJson(message, IncomingMessage.class);
-            long after = Long.parseLong(msg.after());
 
-            lastSnowflake = after;
+            if (Boolean.TRUE.equals(msg.typing())) {
+                // ignored until subscribed, and once closed
+                hub.typing(this);
+                return;
+            }
+
+            Wire wire;
+            try {
+                wire = Wire.of(msg.mode());
+            } catch (IllegalArgumentException ex) {
+                session.close(StatusCode.BAD_DATA, "unknown mode", org.eclipse.jetty.websocket.api.Callback.NOOP);
+                return;
+            }
 
-            listenerCon.addNotificationListener("messages", this);
-            this.notification(0, null, channel);
+            // under the lock, so a close can't slip in before the hub knows
+            // of the socket and leave it subscribed
+            synchronized (this) {
+                if (listening != FRESH) return;
+                listening = LISTENING;
+                this.wire = wire;
+                this.outbound = outbound(wire);
+                hub.subscribe(this, Long.parseLong(msg.after()));
+            }
         }
 
         @OnWebSocketClose
-        public synchronized void close(int statusCode, String reason) {
-            if (listening == LISTENING) {
-                listenerCon.removeNotificationListener(this);
+        public void close(int statusCode, String reason) {
+            boolean wasListening;
+            synchronized (this) {
+                wasListening = listening == LISTENING;
+                listening = CLOSED;
+            }
+            if (wasListening) {
+                outbound.close();
+                hub.unsubscribe(this);
             }
-            listening = CLOSED;
+            connected.decrementAndGet();
         }
 
         // @OnWebSocketError
@@ -142,92 +234,144 @@ public class ChatHandler extends Handler.Abstract {
         //     System.err.println(error);
         // }
 
-        @Override
-        public synchronized void notification(int processId, String channelName, String payload) {
-            if (!channel.equals(payload)) return;
-
-            try (var con = ds.getConnection()) {
-                con.setAutoCommit(true);
-                try (var stmt = con
-                        .prepareStatement("SELECT id, username, msg FROM messages WHERE id > ? AND channelId = (SELECT id FROM channels where name = ?)")) {
-                    stmt.setLong(1, lastSnowflake);
-                    stmt.setString(2, channel);
-                    var rs = stmt.executeQuery();
-                    var messages = new ArrayList<Map<String, Object>>();
-
-                    while (rs.next()) {
-                        lastSnowflake = rs.getLong("id");
-                        var username = rs.getString("username");
-                        var msg = rs.getString("msg");
-
-                        messages.add(Map.of(
-                            "id", lastSnowflake,
-                            "username", username,
-                            "msg", msg));
-                    }
-
-                    if (messages.size() > 0) {
-                        var ctx = new Context(Locale.US, Map.of(
-                            "liveUpdate", true,
-                            "messages", messages));
-                        var fragment = ChatHandler.templateEngine.process("chat", Set.of("#messages"), ctx);
-                        session.sendText(fragment, org.eclipse.jetty.websocket.api.Callback.NOOP);
-                    }
-                }
-            } catch (SQLException ex) {
-                throw new RuntimeException(ex);
-            }
+        OutboundQueue outbound(Wire wire) {
+            return new OutboundQueue(session, wire);
         }
 
         @Override
-        public synchronized void closed() {
-            session.close();
+        protected void send(ByteBuffer fragment) {
+            outbound.send(fragment);
         }
     }
 
-    private void doGet(String channel, Request req, Response resp) throws SQLException, IOException {
-        var sesh = req.getSession(true);
-        String username;
-        if ((username = (String)sesh.getAttribute("username")) == null) {
-            username = "myUsername";
-            sesh.setAttribute("username", username);
+    private void doGet(ChannelRegistry.Channel channel, Request req, Response resp) throws SQLException, IOException {
+        Sessions.username(req, resp);
+
+        var hub = broadcaster.hub(channel);
+        boolean wrapper = "wrapper".equals(req.getHeaders().get("HX-Target"));
+
+        resp.setStatus(HttpStatus.OK_200);
+        var headers = resp.getHeaders();
+        headers.add(HttpHeader.CONTENT_TYPE, "text/html; charset=utf-8");
+        headers.add(HttpHeader.CACHE_CONTROL, "no-cache");
+        headers.add(HttpHeader.EXPIRES, 0);
+
+        var model = model(channel, hub, req);
+        if (!cachePages) {
+            render(model, wrapper, Response.asBufferedOutputStream(req, resp));
+            return;
+        }
+
+        headers.add(HttpHeader.VARY, "Accept-Encoding, HX-Target");
+        var key = wrapper ? channel.name() + "#wrapper" : channel.name();
+        var page = pageCache.get(key, model);
+        if (page == null) {
+            var out = new ByteArrayOutputStream(16384);
+            render(model, wrapper, out);
+            page = pageCache.put(key, model, out.toByteArray());
         }
+        headers.add(HttpHeader.ETAG, page.etag());
+
+        if (PageCache.matches(req.getHeaders().get(HttpHeader.IF_NONE_MATCH), page.etag())) {
+            resp.setStatus(HttpStatus.NOT_MODIFIED_304);
+            return;
+        }
+
+        var body = page.plain();
+        if (req.getHeaders().contains(HttpHeader.ACCEPT_ENCODING, "gzip")) {
+            headers.add(HttpHeader.CONTENT_ENCODING, "gzip");
+            body = page.gzipped();
+        }
+        headers.add(HttpHeader.CONTENT_LENGTH, body.length);
+
+        try (var out = Content.Sink.asOutputStream(resp)) {
+            out.write(body);
+        }
+    }
 
-        var channels = new ArrayList<Map<String, Object>>();
+    /**
+     * Everything the channel page shows. Two equal models render the same
+     * bytes.
+     */
+    private Map<String, Object> model(ChannelRegistry.Channel channel, ChannelHub hub, Request req) throws SQLException {
         var messages = new ArrayList<Map<String, Object>>();
         long lastSnowflake = -1;
+        String older = null;
 
-        try (var con = ds.getConnection()) {
-            con.setAutoCommit(true);
-            try (var stmt = con.prepareStatement("SELECT name FROM channels")) {
-                var rs = stmt.executeQuery();
-                while (rs.next()) {
-                    var name = rs.getString("name");
-                    var channelInfo = new HashMap<String, Object>();
-                    channelInfo.put("name", name);
-                    if (!name.equals(channel))
-                        channelInfo.put("href", Request.newHttpURIFrom(req, String.format("/%s/", name)).getPath());
-                    channels.add(channelInfo);
-                }
+        if (pageSize <= 0) {
+            for (var message : hub.archived()) {
+                lastSnowflake = message.id();
+                messages.add(message.toModel());
             }
-            try (var stmt = con.prepareStatement("SELECT id, username, msg FROM messages WHERE channelId = (SELECT id FROM channels where name = ?)")) {
-                stmt.setString(1, channel);
-                var rs = stmt.executeQuery();
-                while (rs.next()) {
-                    lastSnowflake = rs.getLong("id");
-                    messages.add(Map.of(
-                        "id", lastSnowflake,
-                        "username", rs.getString("username"),
-                        "msg", rs.getString("msg")));
+
+            var recent = hub.recent();
+            // only the part of the channel that has fallen out of memory
+            if (recent.floor() >= 0) {
+                try (var con = ds.getConnection()) {
+                    con.setAutoCommit(true);
+                    try (var stmt = con.prepareStatement("SELECT id, username, msg FROM messages WHERE id <= ? AND channelId = ? ORDER BY id")) {
+                        stmt.setLong(1, recent.floor());
+                        stmt.setLong(2, channel.id());
+                        var rs = stmt.executeQuery();
+                        while (rs.next()) {
+                            var message = Message.from(rs);
+                            lastSnowflake = message.id();
+                            messages.add(message.toModel());
+                        }
+                    }
                 }
             }
+            for (var message : recent.messages()) {
+                lastSnowflake = message.id();
+                messages.add(message.toModel());
+            }
+        }
+
+        if (pageSize > 0) {
+            var page = hub.page(Long.MAX_VALUE, pageSize);
+            for (var message : page) {
+                lastSnowflake = message.id();
+                messages.add(message.toModel());
+            }
+            older = olderHref(channel, page, req);
+        }
+
+        var model = new HashMap<String, Object>();
+        model.put("ws", req.getHttpURI().getPath() + "ws");
+        model.put("channels", registry.sidebar(channel.name()));
+        model.put("messages", messages);
+        model.put("lastSnowflake", lastSnowflake);
+        model.put("older", older);
+        return model;
+    }
+
+    private void render(Map<String, Object> model, boolean wrapper, OutputStream out) throws IOException {
+        var ctx = new Context(Locale.US, model);
+
+        Set<String> selectors = null;
+        if (wrapper)
+            selectors = Set.of("#wrapper");
+
+        var writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+        Templates.engine().process("chat", selectors, ctx, writer);
+        writer.flush();
+    }
+
+    private void doHistory(ChannelRegistry.Channel channel, Request req, Response resp) throws Exception {
+        long before;
+        try {
+            before = Long.parseLong(Request.getParameters(req).getValue("before"));
+        } catch (NumberFormatException ex) {
+            resp.setStatus(HttpStatus.BAD_REQUEST_400);
+            return;
         }
 
-        var ctx = new Context(Locale.US, Map.of(
-            "ws", req.getHttpURI().getPath() + "ws",
-            "channels", channels,
-            "messages", messages,
-            "lastSnowflake", lastSnowflake));
+        var page = broadcaster.hub(channel).page(before, Math.max(pageSize, 1));
+
+        var model = new HashMap<String, Object>();
+        model.put("messages", page.stream().map(Message::toModel).toList());
+        model.put("older", olderHref(channel, page, req));
+        var ctx = new Context(Locale.US, model);
 
         resp.setStatus(HttpStatus.OK_200);
         var headers = resp.getHeaders();
@@ -235,40 +379,161 @@ public class ChatHandler extends Handler.Abstract {
         headers.add(HttpHeader.CACHE_CONTROL, "no-cache");
         headers.add(HttpHeader.EXPIRES, 0);
 
-        Set<String> selectors = null;
-        if ("wrapper".equals(req.getHeaders().get("HX-Target")))
-            selectors = Set.of("#wrapper");
+        Templates.engine().process("chat", Set.of("#messages"), ctx, new OutputStreamWriter(Response.asBufferedOutputStream(req, resp), StandardCharsets.UTF_8));
+    }
 
-        templateEngine.process("chat", selectors, ctx, new OutputStreamWriter(Response.asBufferedOutputStream(req, resp), StandardCharsets.UTF_8));
+    /**
+     * A page of messages containing every word of the q parameter, as
+     * #messages items like a history page, whose older link is the next
+     * page of results.
+     */
+    private void doSearch(ChannelRegistry.Channel channel, Request req, Response resp) throws Exception {
+        if (search == null) {
+            resp.setStatus(HttpStatus.NOT_FOUND_404);
+            return;
+        }
+        if (!search.ready()) {
+            // still rebuilding after a cold start
+            resp.setStatus(HttpStatus.SERVICE_UNAVAILABLE_503);
+            resp.getHeaders().put(HttpHeader.RETRY_AFTER, 5);
+            return;
+        }
+
+        var params = Request.getParameters(req);
+        var query = params.getValue("q");
+        long before;
+        try {
+            before = params.getValue("before") != null ? Long.parseLong(params.getValue("before")) : Long.MAX_VALUE;
+        } catch (NumberFormatException ex) {
+            before = -1;
+        }
+        if (query == null || query.isBlank() || before < 0) {
+            resp.setStatus(HttpStatus.BAD_REQUEST_400);
+            return;
+        }
+
+        var hub = broadcaster.hub(channel);
+        var ids = search.search(channel.name(), query, before, searchPageSize);
+        var messages = ids.length > 0 ? hub.messages(ids) : List.<Message>of();
+        if (messages.size() < ids.length) {
+            // hits from a month retired without an archive; forget the
+            // month and search again
+            var found = messages.stream().map(Message::id).collect(Collectors.toSet());
+            long retired = Arrays.stream(ids).filter(id -> !found.contains(id)).max().getAsLong();
+            search.retire(channel.name(), retired);
+            ids = search.search(channel.name(), query, before, searchPageSize);
+            messages = ids.length > 0 ? hub.messages(ids) : List.<Message>of();
+        }
+
+        var model = new HashMap<String, Object>();
+        model.put("messages", messages.stream().map(Message::toModel).toList());
+        // a full page may have more behind it
+        if (ids.length == searchPageSize) {
+            model.put("older", Request.newHttpURIFrom(req, String.format("/%s/search", channel.name())).getPath()
+                + "?q=" + URLEncoder.encode(query, StandardCharsets.UTF_8) + "&before=" + ids[ids.length - 1]);
+        }
+        var ctx = new Context(Locale.US, model);
+
+        resp.setStatus(HttpStatus.OK_200);
+        var headers = resp.getHeaders();
+        headers.add(HttpHeader.CONTENT_TYPE, "text/html; charset=utf-8");
+        headers.add(HttpHeader.CACHE_CONTROL, "no-cache");
+        headers.add(HttpHeader.EXPIRES, 0);
+
+        Templates.engine().process("chat", Set.of("#messages"), ctx, new OutputStreamWriter(Response.asBufferedOutputStream(req, resp), StandardCharsets.UTF_8));
+    }
+
+    private static String olderHref(ChannelRegistry.Channel channel, List<Message> page, Request req) {
+        // a short page means we have reached the start of the channel
+        if (page.size() < Math.max(pageSize, 1)) return null;
+        return Request.newHttpURIFrom(req, String.format("/%s/history", channel.name())).getPath() + "?before=" + page.get(0).id();
     }
 
-    protected void doPost(String channel, Request req, Response resp) throws Exception {
-        var sesh = req.getSession(false);
-        var username = (String)sesh.getAttribute("username");
+    protected void doPost(ChannelRegistry.Channel channel, Request req, Response resp, Callback cb) throws Exception {
+        // before the session lookup, which may itself hit the database
+        if (!FloodControl.postsPerAddress.tryAcquire(Request.getRemoteAddr(req))) {
+            FloodControl.tooManyRequests(resp, cb);
+            return;
+        }
+
+        var username = Sessions.existingUsername(req);
+        if (username == null) {
+            // never loaded the page, so never got a name
+            resp.setStatus(HttpStatus.FORBIDDEN_403);
+            cb.succeeded();
+            return;
+        }
+        // a visitor without one is still held to the address limit
+        var visitor = Sessions.visitor(req);
+        if (visitor != null && !FloodControl.postsPerUser.tryAcquire(visitor)) {
+            FloodControl.tooManyRequests(resp, cb);
+            return;
+        }
+
+        if (FloodControl.tooLarge(req)) {
+            resp.setStatus(HttpStatus.PAYLOAD_TOO_LARGE_413);
+            cb.succeeded();
+            return;
+        }
         var msg = Request.getParameters(req).getValue("msg").trim();
+        if (FloodControl.tooLarge(msg)) {
+            resp.setStatus(HttpStatus.PAYLOAD_TOO_LARGE_413);
+            cb.succeeded();
+            return;
+        }
 
-        if (!msg.isEmpty()) {
-            var timestamp = Instant.now();
-
-            try (var con = ds.getConnection()) {
-                con.setAutoCommit(false);
-                var snowflake = counter.incrementAndGet(timestamp);
-                try (var stmt = con.prepareStatement("INSERT INTO messages VALUES (?, (SELECT id FROM channels where name = ?), ?, ?)")) {
-                    stmt.setLong(1, snowflake.rep());
-                    stmt.setString(2, channel);
-                    stmt.setString(3, username);
-                    stmt.setString(4, Request.getParameters(req).getValue("msg"));
-                    stmt.execute();
-                }
-                try (var stmt = con.prepareStatement("SELECT pg_notify('messages', ?)")) {
-                    stmt.setString(1, channel);
-                    stmt.execute();
-                }
-                con.commit();
+        resp.setStatus(HttpStatus.NO_CONTENT_204);
+
+        if (msg.isEmpty()) {
+            cb.succeeded();
+            return;
+        }
+
+        var message = new Message(counter.next(), username, Request.getParameters(req).getValue("msg"));
+
+        broadcaster.hub(channel).stoppedTyping(username);
+
+        if (batchWriter != null) {
+            batchWriter.submit(channel, message, cb);
+            return;
+        }
+
+        try (var con = ds.getConnection()) {
+            con.setAutoCommit(false);
+            try (var stmt = con.prepareStatement("INSERT INTO messages VALUES (?, ?, ?, ?)")) {
+                stmt.setLong(1, message.id());
+                stmt.setLong(2, channel.id());
+                stmt.setString(3, message.username());
+                stmt.setString(4, message.msg());
+                stmt.execute();
             }
+            try (var stmt = con.prepareStatement("SELECT pg_notify('messages', ?)")) {
+                stmt.setString(1, notifyPayloads ? Notification.encode(channel.name(), message) : channel.name());
+                stmt.execute();
+            }
+            con.commit();
         }
+        cb.succeeded();
+    }
 
-        resp.setStatus(HttpStatus.NO_CONTENT_204);
+    /**
+     * Runs blocking work on the virtual thread executor if there is one,
+     * otherwise on the calling thread. The work completes the callback.
+     */
+    private boolean execute(Callback cb, BlockingWork work) throws Exception {
+        if (executor == null) {
+            work.run();
+            return true;
+        }
+
+        executor.execute(() -> {
+            try {
+                work.run();
+            } catch (Throwable x) {
+                cb.failed(x);
+            }
+        });
+        return true;
     }
 
     @Override
@@ -288,18 +553,50 @@ public class ChatHandler extends Handler.Abstract {
                 Request.newHttpURIFrom(req, String.format("/%s/", nakedSpec.getPathParams(path).get("channel"))).getPath()
             );
         } else if (baseSpec.matches(path)) {
-            var channel = baseSpec.getPathParams(path).get("channel");
+            var channel = registry.lookup(baseSpec.getPathParams(path).get("channel"));
+            if (channel == null) {
+                Response.writeError(req, resp, cb, HttpStatus.NOT_FOUND_404);
+                return true;
+            }
 
             switch (req.getMethod()) {
                 case "GET":
-                    doGet(channel, req, resp);
-                    break;
+                    return execute(cb, () -> {
+                        long start = System.nanoTime();
+                        doGet(channel, req, resp);
+                        Metrics.get.observeSince(start);
+                        cb.succeeded();
+                    });
                 case "POST":
-                    doPost(channel, req, resp);
-                    break;
+                    long received = System.nanoTime();
+                    // completes the callback itself, possibly after a batch commit
+                    return execute(cb, () -> doPost(channel, req, resp, Callback.from(cb, () -> Metrics.post.observeSince(received))));
                 default:
                     return false;
             }
+        } else if (pathSpec.matches(path)) {
+            var params = pathSpec.getPathParams(path);
+            var endpoint = params.get("endpoint");
+            if (!("history".equals(endpoint) || "search".equals(endpoint)) || !"GET".equals(req.getMethod())) return false;
+
+            var channel = registry.lookup(params.get("channel"));
+            if (channel == null) {
+                Response.writeError(req, resp, cb, HttpStatus.NOT_FOUND_404);
+                return true;
+            }
+
+            if ("search".equals(endpoint)) {
+                return execute(cb, () -> {
+                    long start = System.nanoTime();
+                    doSearch(channel, req, resp);
+                    Metrics.search.observeSince(start);
+                    cb.succeeded();
+                });
+            }
+            return execute(cb, () -> {
+                doHistory(channel, req, resp);
+                cb.succeeded();
+            });
         } else {
             return false;
         }
@@ -0,0 +1,75 @@
+package net.sohio.chat;
+
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.eclipse.jetty.http.HttpHeader;
+import org.eclipse.jetty.http.HttpStatus;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Response;
+import org.eclipse.jetty.util.Callback;
+
+/**
+ * What one user or address may send, checked before a request does any
+ * database work.
+ *
+ * Posts are limited per visitor, told apart by session rather than by
+ * name since names aren't unique, and, more loosely, per remote address,
+ * since several people may share one. WebSocket connections are limited
+ * per address. Rates are per second and a rate of 0 turns its limit off:
+ * net.sohio.chat.limit.postsPerSecond and postBurst,
+ * addressPostsPerSecond and addressPostBurst, connectsPerSecond and
+ * connectBurst. Messages longer than net.sohio.chat.limit.messageChars
+ * are refused.
+ */
+class FloodControl {
+    static RateLimiter postsPerUser = new RateLimiter("post_user",
+        rate("postsPerSecond", 2), Integer.getInteger("net.sohio.chat.limit.postBurst", 10));
+    static RateLimiter postsPerAddress = new RateLimiter("post_address",
+        rate("addressPostsPerSecond", 10), Integer.getInteger("net.sohio.chat.limit.addressPostBurst", 30));
+    static RateLimiter connectsPerAddress = new RateLimiter("connect_address",
+        rate("connectsPerSecond", 2), Integer.getInteger("net.sohio.chat.limit.connectBurst", 20));
+    static int messageChars = Integer.getInteger("net.sohio.chat.limit.messageChars", 2000);
+
+    private static LongAdder oversized = new LongAdder();
+
+    private FloodControl() {}
+
+    private static double rate(String name, double otherwise) {
+        return Double.parseDouble(System.getProperty("net.sohio.chat.limit." + name, Double.toString(otherwise)));
+    }
+
+    public static List<RateLimiter> limiters() {
+        return List.of(postsPerUser, postsPerAddress, connectsPerAddress);
+    }
+
+    /**
+     * Posts refused for their size.
+     */
+    public static long oversized() {
+        return oversized.sum();
+    }
+
+    /**
+     * Whether a post's body is too long to hold an acceptable message,
+     * judged from its Content-Length before it is read. A character takes
+     * at most nine bytes once form-encoded.
+     */
+    public static boolean tooLarge(Request req) {
+        if (req.getLength() <= 9L * messageChars + 1024) return false;
+        oversized.increment();
+        return true;
+    }
+
+    public static boolean tooLarge(String msg) {
+        if (msg.length() <= messageChars) return false;
+        oversized.increment();
+        return true;
+    }
+
+    public static void tooManyRequests(Response resp, Callback cb) {
+        resp.setStatus(HttpStatus.TOO_MANY_REQUESTS_429);
+        resp.getHeaders().put(HttpHeader.RETRY_AFTER, 1);
+        cb.succeeded();
+    }
+}
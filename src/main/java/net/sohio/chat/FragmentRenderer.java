@@ -0,0 +1,117 @@
+package net.sohio.chat;
+
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import org.thymeleaf.ITemplateEngine;
+import org.thymeleaf.context.Context;
+
+/**
+ * Renders live-update {@code #messages} and {@code #presence} fragments to
+ * UTF-8 bytes.
+ *
+ * The writer, encoder and scratch buffer are reused between renders, so a
+ * render allocates only the finished fragment. The result is read-only and
+ * meant to be shared by every socket it goes to. Not thread-safe, each hub
+ * owns one.
+ */
+class FragmentRenderer {
+    private static class ReusableWriter extends Writer {
+        private StringBuilder chars = new StringBuilder(4096);
+
+        @Override
+        public void write(char[] cbuf, int off, int len) {
+            chars.append(cbuf, off, len);
+        }
+
+        @Override
+        public void write(String str, int off, int len) {
+            chars.append(str, off, off + len);
+        }
+
+        @Override
+        public void write(int c) {
+            chars.append((char)c);
+        }
+
+        @Override
+        public void flush() {}
+
+        @Override
+        public void close() {}
+    }
+
+    private ITemplateEngine engine;
+    private ReusableWriter writer = new ReusableWriter();
+    private CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+        .onMalformedInput(CodingErrorAction.REPLACE)
+        .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private ByteBuffer scratch = ByteBuffer.allocate(8192);
+
+    public FragmentRenderer() {
+        this(Templates.engine());
+    }
+
+    FragmentRenderer(ITemplateEngine engine) {
+        this.engine = engine;
+    }
+
+    public ByteBuffer render(List<Message> messages) {
+        long start = System.nanoTime();
+        var ctx = new Context(Locale.US, Map.of(
+            "liveUpdate", true,
+            "messages", messages.stream().map(Message::toModel).toList()));
+
+        writer.chars.setLength(0);
+        engine.process("chat", Set.of("#messages"), ctx, writer);
+        var fragment = encode(writer.chars);
+        Metrics.render.observeSince(start);
+        return fragment;
+    }
+
+    public ByteBuffer renderPresence(List<String> online, List<String> typing) {
+        long start = System.nanoTime();
+        var ctx = new Context(Locale.US, Map.of(
+            "liveUpdate", true,
+            "online", online,
+            "typing", typing));
+
+        writer.chars.setLength(0);
+        engine.process("chat", Set.of("#presence"), ctx, writer);
+        var fragment = encode(writer.chars);
+        Metrics.render.observeSince(start);
+        return fragment;
+    }
+
+    private ByteBuffer encode(CharSequence chars) {
+        var in = CharBuffer.wrap(chars);
+        encoder.reset();
+        scratch.clear();
+        while (encoder.encode(in, scratch, true).isOverflow()) {
+            grow();
+        }
+        while (encoder.flush(scratch).isOverflow()) {
+            grow();
+        }
+        scratch.flip();
+
+        var bytes = new byte[scratch.remaining()];
+        scratch.get(bytes);
+        return ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+    }
+
+    private void grow() {
+        var bigger = ByteBuffer.allocate(scratch.capacity() * 2);
+        scratch.flip();
+        bigger.put(scratch);
+        scratch = bigger;
+    }
+}
@@ -0,0 +1,65 @@
+package net.sohio.chat;
+
+import org.eclipse.jetty.http.HttpHeader;
+import org.eclipse.jetty.http.HttpStatus;
+import org.eclipse.jetty.io.Content;
+import org.eclipse.jetty.server.Handler;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Response;
+import org.eclipse.jetty.util.Callback;
+
+import com.google.gson.Gson;
+
+/**
+ * Health and load of this node, for the proxy in front of it.
+ *
+ * Answers 503 while the node is not running, once its LISTEN connection
+ * has been down for longer than a reconnect takes, or once it holds
+ * net.sohio.chat.maxSockets sockets, so active health checks steer new
+ * WebSocket connections to other nodes. While the connection is being
+ * re-established the node reports itself degraded but still answers 200,
+ * since it may be the only node and its sockets get caught up once the
+ * connection is back. The body reports the status, the node id and its
+ * socket count either way.
+ */
+class HealthHandler extends Handler.Abstract.NonBlocking {
+    private static record Health(String status, long node, int sockets, int maxSockets) {}
+
+    private static Gson gson = new Gson();
+    private static int maxSockets = Integer.getInteger("net.sohio.chat.maxSockets", 0);
+
+    private long node;
+    private ListenerSupervisor supervisor;
+
+    public HealthHandler(long node, ListenerSupervisor supervisor) {
+        this.node = node;
+        this.supervisor = supervisor;
+    }
+
+    @Override
+    public boolean handle(Request req, Response resp, Callback cb) throws Exception {
+        int sockets = ChatHandler.WebSocketHandler.connected();
+
+        String status;
+        if (!getServer().isRunning()) {
+            status = "stopping";
+        } else if (supervisor.isDown()) {
+            status = "down";
+        } else if (!supervisor.isConnected()) {
+            status = "degraded";
+        } else if (maxSockets > 0 && sockets >= maxSockets) {
+            status = "full";
+        } else {
+            status = "ok";
+        }
+
+        boolean healthy = "ok".equals(status) || "degraded".equals(status);
+        resp.setStatus(healthy ? HttpStatus.OK_200 : HttpStatus.SERVICE_UNAVAILABLE_503);
+        var headers = resp.getHeaders();
+        headers.add(HttpHeader.CONTENT_TYPE, "application/json");
+        headers.add(HttpHeader.CACHE_CONTROL, "no-cache");
+
+        Content.Sink.write(resp, true, gson.toJson(new Health(status, node, sockets, maxSockets)), cb);
+        return true;
+    }
+}
@@ -0,0 +1,206 @@
+package net.sohio.chat;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import javax.sql.DataSource;
+
+import org.eclipse.jetty.util.component.AbstractLifeCycle;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.impossibl.postgres.api.jdbc.PGConnection;
+import com.impossibl.postgres.api.jdbc.PGNotificationListener;
+import com.zaxxer.hikari.HikariDataSource;
+
+/**
+ * Owns the LISTEN connection and keeps it alive.
+ *
+ * When the connection drops, or fails a periodic validity check, the
+ * supervisor reconnects with exponential backoff and re-issues every
+ * LISTEN. It then tells each listener that notifications may have been
+ * missed, so the listener can replay them. Sockets stay open throughout.
+ */
+class ListenerSupervisor extends AbstractLifeCycle {
+    public interface Listener {
+        void notification(String payload);
+
+        /**
+         * The connection was (re-)established. Anything sent while it was
+         * down is lost and has to be read back from the database.
+         */
+        void reconnected();
+    }
+
+    private static Logger log = LoggerFactory.getLogger(ListenerSupervisor.class);
+
+    private static long MIN_BACKOFF_MILLIS = 100;
+    private static long MAX_BACKOFF_MILLIS = 30_000;
+    private static long CHECK_MILLIS = Long.getLong("net.sohio.chat.listenerCheckMillis", 10_000);
+
+    private DataSource ds;
+    private Map<String, Listener> listeners = new ConcurrentHashMap<>();
+    private ScheduledExecutorService scheduler;
+    private Connection con;
+    private long backoff = MIN_BACKOFF_MILLIS;
+    private volatile boolean connected = false;
+    private volatile long lostAt = System.nanoTime();
+
+    public ListenerSupervisor(DataSource ds) {
+        this.ds = ds;
+    }
+
+    /**
+     * Routes notifications on {@code channel} to {@code listener}. Must be
+     * called before the supervisor starts.
+     */
+    public void listen(String channel, Listener listener) {
+        if (isStarted())
+            throw new IllegalStateException("already listening");
+        listeners.put(channel, listener);
+    }
+
+    public boolean isConnected() {
+        return connected;
+    }
+
+    /**
+     * Whether the connection has been gone for longer than the longest wait
+     * between retries, so it is more than a reconnect in progress.
+     */
+    public boolean isDown() {
+        return !connected && System.nanoTime() - lostAt > (MAX_BACKOFF_MILLIS + MAX_BACKOFF_MILLIS / 2) * 1_000_000;
+    }
+
+    @Override
+    protected void doStart() throws Exception {
+        lostAt = System.nanoTime();
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            var thread = new Thread(r, "schat-listener");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.execute(this::connect);
+        scheduler.scheduleWithFixedDelay(this::check, CHECK_MILLIS, CHECK_MILLIS, TimeUnit.MILLISECONDS);
+        super.doStart();
+    }
+
+    @Override
+    protected void doStop() throws Exception {
+        scheduler.shutdownNow();
+        synchronized (this) {
+            if (con != null) discard(con);
+            con = null;
+            connected = false;
+        }
+        super.doStop();
+    }
+
+    private void connect() {
+        synchronized (this) {
+            if (con != null || scheduler.isShutdown()) return;
+
+            Connection fresh = null;
+            try {
+                fresh = ds.getConnection();
+                fresh.setAutoCommit(true);
+                fresh.unwrap(PGConnection.class).addNotificationListener(new Forwarder(fresh));
+                try (var stmt = fresh.createStatement()) {
+                    for (var channel : listeners.keySet()) {
+                        stmt.execute("LISTEN " + channel);
+                    }
+                }
+            } catch (SQLException ex) {
+                log.warn("could not open the LISTEN connection, retrying in {}ms", backoff, ex);
+                if (fresh != null) discard(fresh);
+                retry();
+                return;
+            }
+
+            this.con = fresh;
+            connected = true;
+            backoff = MIN_BACKOFF_MILLIS;
+        }
+
+        for (var listener : listeners.values()) {
+            try {
+                listener.reconnected();
+            } catch (RuntimeException ex) {
+                log.warn("replay after reconnect failed", ex);
+            }
+        }
+    }
+
+    private void check() {
+        Connection con;
+        synchronized (this) {
+            con = this.con;
+        }
+        if (con == null) return;
+
+        boolean valid;
+        try {
+            valid = con.isValid(5);
+        } catch (SQLException ex) {
+            valid = false;
+        }
+        if (!valid) lost(con);
+    }
+
+    private synchronized void lost(Connection failed) {
+        if (failed != con) return;
+
+        log.warn("lost the LISTEN connection, reconnecting in {}ms", backoff);
+        con = null;
+        connected = false;
+        lostAt = System.nanoTime();
+        discard(failed);
+        retry();
+    }
+
+    private void retry() {
+        if (scheduler.isShutdown()) return;
+
+        long jitter = ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+        scheduler.schedule(this::connect, backoff + jitter, TimeUnit.MILLISECONDS);
+        backoff = Math.min(backoff * 2, MAX_BACKOFF_MILLIS);
+    }
+
+    private void discard(Connection con) {
+        try {
+            // keep a dead connection from going back into the pool
+            if (ds instanceof HikariDataSource hikari) {
+                hikari.evictConnection(con);
+            } else {
+                con.close();
+            }
+        } catch (SQLException ex) {
+            log.debug("could not close the LISTEN connection", ex);
+        }
+    }
+
+    private class Forwarder implements PGNotificationListener {
+        private Connection con;
+
+        Forwarder(Connection con) {
+            this.con = con;
+        }
+
+        @Override
+        public void notification(int processId, String channelName, String payload) {
+            var listener = listeners.get(channelName);
+            if (listener != null) listener.notification(payload);
+        }
+
+        @Override
+        public void closed() {
+            lost(con);
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package net.sohio.chat;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Map;
+
+record Message(long id, String username, String msg) {
+    public static Message from(ResultSet rs) throws SQLException {
+        return new Message(rs.getLong("id"), rs.getString("username"), rs.getString("msg"));
+    }
+
+    public Map<String, Object> toModel() {
+        return Map.of(
+            "id", id,
+            "username", username,
+            "msg", msg);
+    }
+}
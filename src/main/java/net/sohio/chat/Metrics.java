@@ -0,0 +1,161 @@
+package net.sohio.chat;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histograms for the hot paths, written out in the
+ * Prometheus text format by {@link MetricsHandler}.
+ *
+ * Everything here is a static adder, so recording costs a few uncontended
+ * increments and never takes a lock.
+ */
+class Metrics {
+    /**
+     * A histogram with fixed buckets from half a millisecond to ten seconds.
+     */
+    static class Histogram {
+        private static String[] LABELS = {
+            "0.0005", "0.001", "0.0025", "0.005", "0.01", "0.025", "0.05", "0.1", "0.25", "0.5", "1", "2.5", "5", "10" };
+        private static double[] BOUNDS = new double[LABELS.length];
+        static {
+            for (int i = 0; i < LABELS.length; i++) {
+                BOUNDS[i] = Double.parseDouble(LABELS[i]);
+            }
+        }
+
+        private String name;
+        private String help;
+        private LongAdder[] buckets = new LongAdder[BOUNDS.length + 1];
+        private LongAdder sumNanos = new LongAdder();
+
+        Histogram(String name, String help) {
+            this.name = name;
+            this.help = help;
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        public void observe(long nanos) {
+            double seconds = nanos / 1e9;
+            int i = 0;
+            while (i < BOUNDS.length && seconds > BOUNDS[i]) i++;
+            buckets[i].increment();
+            sumNanos.add(nanos);
+        }
+
+        public void observeSince(long startNanos) {
+            observe(System.nanoTime() - startNanos);
+        }
+
+        void write(StringBuilder out) {
+            header(out, name, help, "histogram");
+            long count = 0;
+            for (int i = 0; i < BOUNDS.length; i++) {
+                count += buckets[i].sum();
+                out.append(name).append("_bucket{le=\"").append(LABELS[i]).append("\"} ").append(count).append('\n');
+            }
+            count += buckets[BOUNDS.length].sum();
+            out.append(name).append("_bucket{le=\"+Inf\"} ").append(count).append('\n');
+            out.append(name).append("_sum ").append(sumNanos.sum() / 1e9).append('\n');
+            out.append(name).append("_count ").append(count).append('\n');
+        }
+    }
+
+    public static Histogram get = new Histogram("schat_get_seconds", "Time to render a channel page.");
+    public static Histogram post = new Histogram("schat_post_seconds", "Time from receiving a post to committing it.");
+    public static Histogram query = new Histogram("schat_notification_query_seconds", "Time a hub spends reading the rows a notification announced.");
+    public static Histogram render = new Histogram("schat_render_seconds", "Time to render a live-update fragment.");
+    public static Histogram send = new Histogram("schat_send_seconds", "Time from handing a frame to a socket until it is written.");
+    public static Histogram delivery = new Histogram("schat_delivery_seconds", "Time from minting a snowflake until its message is handed to sockets.");
+    public static Histogram search = new Histogram("schat_search_seconds", "Time to answer a search, reading the matches included.");
+
+    private static LongAdder notifications = new LongAdder();
+    private static LongAdder presence = new LongAdder();
+    private static Map<String, AtomicInteger> channelSockets = new ConcurrentHashMap<>();
+
+    private Metrics() {}
+
+    public static void notification() {
+        notifications.increment();
+    }
+
+    public static void presence() {
+        presence.increment();
+    }
+
+    public static void delivered(long snowflake) {
+        long millis = System.currentTimeMillis() - new Snowflake(snowflake).timestamp().toEpochMilli();
+        // clocks of different nodes may disagree a little
+        delivery.observe(Math.max(millis, 0) * 1_000_000);
+    }
+
+    public static void subscribed(String channel, int delta) {
+        channelSockets.computeIfAbsent(channel, c -> new AtomicInteger()).addAndGet(delta);
+    }
+
+    public static void write(StringBuilder out) {
+        for (var histogram : new Histogram[] { get, post, query, render, send, delivery, search }) {
+            histogram.write(out);
+        }
+
+        header(out, "schat_notifications_total", "Notifications received on the messages channel.", "counter");
+        out.append("schat_notifications_total ").append(notifications.sum()).append('\n');
+
+        header(out, "schat_presence_updates_total", "Presence changes sent to a channel, at most one per channel and tick.", "counter");
+        out.append("schat_presence_updates_total ").append(presence.sum()).append('\n');
+
+        header(out, "schat_sockets", "Open WebSocket connections.", "gauge");
+        out.append("schat_sockets ").append(ChatHandler.WebSocketHandler.connected()).append('\n');
+
+        header(out, "schat_channel_sockets", "Sockets subscribed to each channel.", "gauge");
+        for (var entry : channelSockets.entrySet()) {
+            out.append("schat_channel_sockets{channel=\"").append(escape(entry.getKey())).append("\"} ")
+                .append(entry.getValue().get()).append('\n');
+        }
+
+        header(out, "schat_outbound_queued", "Fragments queued for slow sockets.", "gauge");
+        out.append("schat_outbound_queued ").append(OutboundQueue.depth()).append('\n');
+
+        header(out, "schat_outbound_evictions_total", "Sockets closed for falling too far behind.", "counter");
+        out.append("schat_outbound_evictions_total ").append(OutboundQueue.evictions()).append('\n');
+
+        header(out, "schat_history_hits_total", "Reads served from recent history in memory.", "counter");
+        out.append("schat_history_hits_total ").append(RecentHistory.hits()).append('\n');
+
+        header(out, "schat_history_misses_total", "Reads that fell through to the database.", "counter");
+        out.append("schat_history_misses_total ").append(RecentHistory.misses()).append('\n');
+
+        header(out, "schat_archive_reads_total", "History pages that read from the archive.", "counter");
+        out.append("schat_archive_reads_total ").append(Archive.reads()).append('\n');
+
+        header(out, "schat_search_postings", "Entries in the search index.", "gauge");
+        out.append("schat_search_postings ").append(SearchIndex.postings()).append('\n');
+
+        header(out, "schat_page_cache_hits_total", "Channel pages sent from the page cache.", "counter");
+        out.append("schat_page_cache_hits_total ").append(PageCache.hits()).append('\n');
+
+        header(out, "schat_page_cache_misses_total", "Channel pages that had to be rendered.", "counter");
+        out.append("schat_page_cache_misses_total ").append(PageCache.misses()).append('\n');
+
+        header(out, "schat_limited_total", "Requests refused with 429, by the limit they hit.", "counter");
+        for (var limiter : FloodControl.limiters()) {
+            out.append("schat_limited_total{limit=\"").append(limiter.name()).append("\"} ").append(limiter.limited()).append('\n');
+        }
+
+        header(out, "schat_oversized_total", "Posts refused for their size.", "counter");
+        out.append("schat_oversized_total ").append(FloodControl.oversized()).append('\n');
+    }
+
+    static void header(StringBuilder out, String name, String help, String type) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static String escape(String label) {
+        return label.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
@@ -0,0 +1,35 @@
+package net.sohio.chat;
+
+import org.eclipse.jetty.http.HttpHeader;
+import org.eclipse.jetty.http.HttpStatus;
+import org.eclipse.jetty.io.Content;
+import org.eclipse.jetty.server.Handler;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Response;
+import org.eclipse.jetty.util.Callback;
+
+/**
+ * The node's {@link Metrics} and pool figures in the Prometheus text format.
+ */
+class MetricsHandler extends Handler.Abstract.NonBlocking {
+    private PoolMetrics pool;
+
+    public MetricsHandler(PoolMetrics pool) {
+        this.pool = pool;
+    }
+
+    @Override
+    public boolean handle(Request req, Response resp, Callback cb) throws Exception {
+        var out = new StringBuilder(8192);
+        Metrics.write(out);
+        pool.write(out);
+
+        resp.setStatus(HttpStatus.OK_200);
+        var headers = resp.getHeaders();
+        headers.add(HttpHeader.CONTENT_TYPE, "text/plain; version=0.0.4; charset=utf-8");
+        headers.add(HttpHeader.CACHE_CONTROL, "no-cache");
+
+        Content.Sink.write(resp, true, out.toString(), cb);
+        return true;
+    }
+}
@@ -0,0 +1,113 @@
+package net.sohio.chat;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.List;
+
+import javax.sql.DataSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Versioned schema changes, applied in order at startup.
+ *
+ * The schema_version table records what has been applied. Each migration
+ * runs in its own transaction, and the whole run holds an advisory lock so
+ * nodes starting together don't race each other. Append new migrations to
+ * the end; never edit one that has shipped.
+ */
+class Migrations {
+    @FunctionalInterface
+    private static interface Step {
+        void apply(Connection con) throws SQLException;
+    }
+
+    private static record Migration(int version, String name, Step step) {}
+
+    private static Logger log = LoggerFactory.getLogger(Migrations.class);
+
+    // any constant will do, as long as nothing else locks it
+    private static long LOCK = 0x5c4a7_0001L;
+
+    private static List<Migration> MIGRATIONS = List.of(
+        new Migration(1, "channels and messages", sql(
+            "CREATE TABLE IF NOT EXISTS channels(id bigint primary key, name text not null unique)",
+            "CREATE TABLE IF NOT EXISTS messages(id bigint primary key, channelId bigint not null, username character varying(32) not null, msg text not null)",
+            "INSERT INTO channels VALUES (1, 'general') ON CONFLICT DO NOTHING")),
+        new Migration(2, "notify on channel changes", sql(
+            """
+            CREATE OR REPLACE FUNCTION notify_channels() RETURNS trigger AS $$
+            BEGIN
+                PERFORM pg_notify('channels', '');
+                RETURN NULL;
+            END;
+            $$ LANGUAGE plpgsql""",
+            "DROP TRIGGER IF EXISTS channels_changed ON channels",
+            """
+            CREATE TRIGGER channels_changed AFTER INSERT OR UPDATE OR DELETE OR TRUNCATE ON channels
+            FOR EACH STATEMENT EXECUTE FUNCTION notify_channels()""")),
+        new Migration(3, "index messages by channel", sql(
+            "CREATE INDEX IF NOT EXISTS messages_channel_id ON messages (channelId, id)")),
+        new Migration(4, "partition messages by month", Partitions::partition));
+
+    private Migrations() {}
+
+    private static Step sql(String... statements) {
+        return con -> {
+            try (var stmt = con.createStatement()) {
+                for (var statement : statements) {
+                    stmt.execute(statement);
+                }
+            }
+        };
+    }
+
+    public static void migrate(DataSource ds) throws SQLException {
+        try (var con = ds.getConnection()) {
+            con.setAutoCommit(true);
+            try (var stmt = con.prepareStatement("SELECT pg_advisory_lock(?)")) {
+                stmt.setLong(1, LOCK);
+                stmt.execute();
+            }
+
+            try {
+                try (var stmt = con.createStatement()) {
+                    stmt.execute("CREATE TABLE IF NOT EXISTS schema_version(version integer primary key, name text not null, applied timestamptz not null default now())");
+                }
+
+                int current = 0;
+                try (var stmt = con.prepareStatement("SELECT coalesce(max(version), 0) FROM schema_version")) {
+                    var rs = stmt.executeQuery();
+                    if (rs.next()) current = rs.getInt(1);
+                }
+
+                for (var migration : MIGRATIONS) {
+                    if (migration.version() <= current) continue;
+
+                    log.info("migrating to version {}: {}", migration.version(), migration.name());
+                    con.setAutoCommit(false);
+                    try {
+                        migration.step().apply(con);
+                        try (var stmt = con.prepareStatement("INSERT INTO schema_version(version, name) VALUES (?, ?)")) {
+                            stmt.setInt(1, migration.version());
+                            stmt.setString(2, migration.name());
+                            stmt.execute();
+                        }
+                        con.commit();
+                    } catch (SQLException ex) {
+                        con.rollback();
+                        throw ex;
+                    } finally {
+                        con.setAutoCommit(true);
+                    }
+                }
+            } finally {
+                try (var stmt = con.prepareStatement("SELECT pg_advisory_unlock(?)")) {
+                    stmt.setLong(1, LOCK);
+                    stmt.execute();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package net.sohio.chat;
+
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.jetty.websocket.api.Callback;
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.StatusCode;
+import org.eclipse.jetty.websocket.api.annotations.OnWebSocketClose;
+import org.eclipse.jetty.websocket.api.annotations.OnWebSocketMessage;
+import org.eclipse.jetty.websocket.api.annotations.OnWebSocketOpen;
+import org.eclipse.jetty.websocket.api.annotations.WebSocket;
+
+import com.google.gson.Gson;
+
+/**
+ * One socket following any number of channels, served at /ws.
+ *
+ * The client sends JSON messages such as
+ * {@code {"mode": "json", "subscribe": {"general": "-1", "random": "123"}}}
+ * and {@code {"unsubscribe": ["random"]}}, or {@code {"typing": ["general"]}}
+ * while the user types. Each value under subscribe is
+ * that channel's after cursor. The first message fixes the wire format,
+ * which has to be json or binary since updates for different channels
+ * share the socket, each preceded by its channel's {@link Wire#header}.
+ * Unknown channels are ignored.
+ */
+@WebSocket
+public class MuxSocketHandler {
+    static record IncomingMessage(String mode, Map<String, String> subscribe, List<String> unsubscribe, List<String> typing) {}
+
+    /**
+     * This socket's subscription to one channel.
+     */
+    private class Member extends Subscriber {
+        private ChannelHub hub;
+        private ByteBuffer header;
+
+        Member(ChannelHub hub, String channel) {
+            this.hub = hub;
+            this.wire = MuxSocketHandler.this.wire;
+            this.username = MuxSocketHandler.this.username;
+            this.header = wire.header(channel);
+        }
+
+        @Override
+        protected void send(ByteBuffer fragment) {
+            outbound.send(header, fragment);
+        }
+    }
+
+    private static Gson gson = new Gson();
+
+    private ChannelRegistry registry;
+    private Broadcaster broadcaster;
+    private String username;
+    private Session session;
+    private Wire wire;
+    private volatile OutboundQueue outbound;
+    // guarded by the handler, so a close can't miss a subscription in flight
+    private Map<String, Member> members = new HashMap<>();
+    private boolean closed = false;
+
+    public MuxSocketHandler(ChannelRegistry registry, Broadcaster broadcaster, String username) {
+        this.registry = registry;
+        this.broadcaster = broadcaster;
+        this.username = username;
+    }
+
+    @OnWebSocketOpen
+    public void open(Session session) {
+        this.session = session;
+        session.setIdleTimeout(Duration.ZERO);
+        ChatHandler.WebSocketHandler.connected.incrementAndGet();
+    }
+
+    @OnWebSocketMessage
+    public void message(Reader message) {
+        handle(gson.fromJson(message, IncomingMessage.class));
+    }
+
+    private synchronized void handle(IncomingMessage msg) {
+        if (closed) return;
+
+        if (outbound == null) {
+            Wire wire;
+            try {
+                wire = Wire.of(msg.mode());
+            } catch (IllegalArgumentException ex) {
+                wire = Wire.HTML;
+            }
+            if (wire == Wire.HTML) {
+                closed = true;
+                session.close(StatusCode.BAD_DATA, "mode must be json or binary", Callback.NOOP);
+                return;
+            }
+            this.wire = wire;
+            outbound = new OutboundQueue(session, wire);
+        }
+
+        if (msg.unsubscribe() != null) {
+            for (var name : msg.unsubscribe()) {
+                var member = members.remove(name);
+                if (member != null) member.hub.unsubscribe(member);
+            }
+        }
+
+        if (msg.subscribe() != null) {
+            var subscriptions = new ArrayList<Broadcaster.Subscription>();
+            for (var entry : msg.subscribe().entrySet()) {
+                var channel = registry.lookup(entry.getKey());
+                if (channel == null || members.containsKey(channel.name())) continue;
+
+                var member = new Member(broadcaster.hub(channel), channel.name());
+                members.put(channel.name(), member);
+                subscriptions.add(new Broadcaster.Subscription(channel, member, Long.parseLong(entry.getValue())));
+            }
+            broadcaster.subscribe(subscriptions);
+        }
+
+        if (msg.typing() != null) {
+            for (var name : msg.typing()) {
+                var member = members.get(name);
+                if (member != null) member.hub.typing(member);
+            }
+        }
+    }
+
+    @OnWebSocketClose
+    public synchronized void close(int statusCode, String reason) {
+        closed = true;
+        if (outbound != null) outbound.close();
+        ChatHandler.WebSocketHandler.connected.decrementAndGet();
+        unsubscribeAll();
+    }
+
+    private void unsubscribeAll() {
+        for (var member : members.values()) {
+            member.hub.unsubscribe(member);
+        }
+        members.clear();
+    }
+}
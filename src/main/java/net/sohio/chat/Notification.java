@@ -0,0 +1,56 @@
+package net.sohio.chat;
+
+import java.nio.charset.StandardCharsets;
+
+import com.google.gson.Gson;
+
+/**
+ * Payload of a NOTIFY on the messages channel.
+ *
+ * The legacy format is just the channel name, telling listeners to re-read
+ * the channel. The JSON format also carries the new message, so listeners
+ * can deliver it without going back to the database. Messages that would
+ * not fit in a NOTIFY payload are sent with only their id and are fetched
+ * by id on the receiving end.
+ */
+record Notification(String channel, Long id, String username, String msg) {
+    // postgres rejects payloads of 8000 bytes or more
+    public static int MAX_PAYLOAD_BYTES = 7999;
+
+    // ids are minted before their rows commit, by nodes whose clocks may
+    // disagree a little, so they can arrive out of order by this much
+    private static long lateMillis = Long.getLong("net.sohio.chat.lateMillis", 1000);
+
+    private static Gson gson = new Gson();
+
+    /**
+     * Where to read back from to find rows past {@code cursor} along with
+     * any that committed after it.
+     */
+    public static long lateFrom(long cursor) {
+        return Math.max(-1, cursor - (lateMillis << 16));
+    }
+
+    public static String encode(String channel, Message message) {
+        var json = gson.toJson(new Notification(channel, message.id(), message.username(), message.msg()));
+        if (json.getBytes(StandardCharsets.UTF_8).length <= MAX_PAYLOAD_BYTES) {
+            return json;
+        }
+        return gson.toJson(new Notification(channel, message.id(), null, null));
+    }
+
+    public static Notification decode(String payload) {
+        if (!payload.startsWith("{")) {
+            return new Notification(payload, null, null, null);
+        }
+        return gson.fromJson(payload, Notification.class);
+    }
+
+    public boolean hasMessage() {
+        return id != null && username != null && msg != null;
+    }
+
+    public Message message() {
+        return new Message(id, username, msg);
+    }
+}
@@ -0,0 +1,157 @@
+package net.sohio.chat;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.eclipse.jetty.util.Callback;
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.StatusCode;
+import org.eclipse.jetty.websocket.common.WebSocketSession;
+import org.eclipse.jetty.websocket.core.CoreSession;
+import org.eclipse.jetty.websocket.core.Frame;
+
+/**
+ * Outgoing frames of one socket.
+ *
+ * Fragments are already encoded and shared between sockets, so they are
+ * sent as frames of the socket's wire format straight through the core
+ * session instead of being re-encoded per socket by sendText. At most one frame is in flight.
+ * Fragments that arrive meanwhile are queued and go out together as the
+ * next frame.
+ *
+ * A socket whose queue stays over its frame or byte cap for longer than
+ * the grace period is closed with 1013 (try again later). One whose queue
+ * reaches twice either cap is closed at once, so a stalled socket in a busy
+ * channel can't buffer without bound during the grace period. The client
+ * then reconnects and catches up with after=.
+ */
+class OutboundQueue implements Callback {
+    private static int maxFrames = Integer.getInteger("net.sohio.chat.ws.maxQueuedFrames", 64);
+    private static int maxBytes = Integer.getInteger("net.sohio.chat.ws.maxQueuedBytes", 1 << 20);
+    private static long graceMillis = Long.getLong("net.sohio.chat.ws.evictAfterMillis", 5000);
+    // over the cap this many times is evicted without waiting out the grace
+    private static int HARD_CAP = 2;
+
+    private static AtomicLong depth = new AtomicLong();
+    private static LongAdder evictions = new LongAdder();
+
+    private CoreSession coreSession;
+    private byte opCode;
+    private List<ByteBuffer> pending = new ArrayList<>();
+    private int pendingBytes = 0;
+    private boolean sending = false;
+    private boolean closed = false;
+    private long overSince = -1;
+    private long sentAt;
+
+    public OutboundQueue(Session session, Wire wire) {
+        this(((WebSocketSession)session).getCoreSession(), wire);
+    }
+
+    OutboundQueue(CoreSession coreSession, Wire wire) {
+        this.coreSession = coreSession;
+        this.opCode = wire.opCode();
+    }
+
+    /**
+     * Fragments queued across all sockets.
+     */
+    public static long depth() {
+        return depth.get();
+    }
+
+    public static long evictions() {
+        return evictions.sum();
+    }
+
+    public void send(ByteBuffer fragment) {
+        send(null, fragment);
+    }
+
+    /**
+     * Queues {@code fragment} right after {@code header}, with nothing from
+     * another sender in between.
+     */
+    public synchronized void send(ByteBuffer header, ByteBuffer fragment) {
+        if (closed) return;
+
+        if (header != null) {
+            pending.add(header);
+            pendingBytes += header.remaining();
+            depth.incrementAndGet();
+        }
+        pending.add(fragment);
+        pendingBytes += fragment.remaining();
+        depth.incrementAndGet();
+
+        if (pending.size() > maxFrames || pendingBytes > maxBytes) {
+            if (pending.size() > HARD_CAP * maxFrames || pendingBytes > (long)HARD_CAP * maxBytes) {
+                evict();
+                return;
+            }
+
+            long now = System.nanoTime();
+            if (overSince < 0) {
+                overSince = now;
+            } else if (now - overSince > graceMillis * 1_000_000) {
+                evict();
+                return;
+            }
+        }
+
+        if (!sending) flush();
+    }
+
+    public synchronized void close() {
+        if (closed) return;
+
+        closed = true;
+        clear();
+    }
+
+    @Override
+    public synchronized void succeeded() {
+        Metrics.send.observeSince(sentAt);
+        sending = false;
+        if (!closed && !pending.isEmpty()) flush();
+    }
+
+    @Override
+    public synchronized void failed(Throwable x) {
+        sending = false;
+        close();
+    }
+
+    private void flush() {
+        ByteBuffer frame;
+        if (pending.size() == 1) {
+            frame = pending.get(0).slice();
+        } else {
+            frame = ByteBuffer.allocate(pendingBytes);
+            for (var fragment : pending) {
+                frame.put(fragment.slice());
+            }
+            frame.flip();
+        }
+        clear();
+        overSince = -1;
+        sending = true;
+        sentAt = System.nanoTime();
+        coreSession.sendFrame(new Frame(opCode, frame), this, false);
+    }
+
+    private void evict() {
+        evictions.increment();
+        close();
+        coreSession.close(StatusCode.TRY_AGAIN_LATER, "slow consumer", Callback.NOOP);
+    }
+
+    private void clear() {
+        depth.addAndGet(-pending.size());
+        pending.clear();
+        pendingBytes = 0;
+    }
+}
@@ -0,0 +1,86 @@
+package net.sohio.chat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The last rendering of each channel page, as plain and gzipped bytes,
+ * along with the model it was rendered from. A page whose model is still
+ * the same is sent as is, without a render or compression.
+ *
+ * The ETag is a hash of the rendered bytes, so every node hands out the
+ * same one for the same page, and it survives restarts.
+ */
+class PageCache {
+    public static record Page(String etag, Map<String, Object> model, byte[] plain, byte[] gzipped) {}
+
+    private static LongAdder hits = new LongAdder();
+    private static LongAdder misses = new LongAdder();
+
+    private ConcurrentHashMap<String, Page> pages = new ConcurrentHashMap<>();
+
+    public static long hits() {
+        return hits.sum();
+    }
+
+    public static long misses() {
+        return misses.sum();
+    }
+
+    /**
+     * Whether an If-None-Match header names {@code etag}. The proxy may
+     * have weakened it while compressing.
+     */
+    public static boolean matches(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) return false;
+
+        for (var tag : ifNoneMatch.split(",")) {
+            tag = tag.strip();
+            if (tag.startsWith("W/")) tag = tag.substring(2);
+            if (tag.equals(etag) || tag.equals("*")) return true;
+        }
+        return false;
+    }
+
+    public Page get(String key, Map<String, Object> model) {
+        var page = pages.get(key);
+        if (page != null && page.model().equals(model)) {
+            hits.increment();
+            return page;
+        }
+        misses.increment();
+        return null;
+    }
+
+    public Page put(String key, Map<String, Object> model, byte[] plain) {
+        var page = new Page(etag(plain), model, plain, gzip(plain));
+        pages.put(key, page);
+        return page;
+    }
+
+    static String etag(byte[] plain) {
+        try {
+            var digest = MessageDigest.getInstance("SHA-256").digest(plain);
+            return '"' + Base64.getUrlEncoder().withoutPadding().encodeToString(digest).substring(0, 22) + '"';
+        } catch (NoSuchAlgorithmException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    private static byte[] gzip(byte[] plain) {
+        var out = new ByteArrayOutputStream(plain.length / 4);
+        try (var gzip = new GZIPOutputStream(out)) {
+            gzip.write(plain);
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,119 @@
+package net.sohio.chat;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.YearMonth;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Monthly partitions of the messages table.
+ *
+ * A snowflake starts with its timestamp, so a month of messages is one
+ * range of ids, and the partition key is the id itself. Partitions are
+ * named messages_yyyy_mm after the UTC month they hold. Dropping a month
+ * drops its table, which leaves nothing behind to vacuum.
+ */
+class Partitions {
+    // partitions are created this many months ahead
+    static int AHEAD = 2;
+
+    private static YearMonth FIRST = YearMonth.from(Snowflake.EPOCH.atZone(ZoneOffset.UTC));
+
+    private Partitions() {}
+
+    static YearMonth monthOf(long snowflake) {
+        var month = YearMonth.from(new Snowflake(snowflake).timestamp().atZone(ZoneOffset.UTC));
+        return month.isBefore(FIRST) ? FIRST : month;
+    }
+
+    /**
+     * The smallest snowflake minted in {@code month}.
+     */
+    static long lowerBound(YearMonth month) {
+        if (!month.isAfter(FIRST)) return 0;
+        var start = month.atDay(1).atStartOfDay(ZoneOffset.UTC).toInstant();
+        return Snowflake.tsOf(start) << 16;
+    }
+
+    static String name(YearMonth month) {
+        return String.format("messages_%04d_%02d", month.getYear(), month.getMonthValue());
+    }
+
+    /**
+     * The month a partition called {@code name} holds, or null if it is
+     * not one of ours.
+     */
+    static YearMonth parse(String name) {
+        if (!name.matches("messages_\\d{4}_\\d{2}")) return null;
+        return YearMonth.of(Integer.parseInt(name.substring(9, 13)), Integer.parseInt(name.substring(14, 16)));
+    }
+
+    /**
+     * Creates the partitions of {@code table} for every month from
+     * {@code from} to {@code to} that doesn't have one yet.
+     */
+    static void ensure(Connection con, String table, YearMonth from, YearMonth to) throws SQLException {
+        try (var stmt = con.createStatement()) {
+            for (var month = from; !month.isAfter(to); month = month.plusMonths(1)) {
+                stmt.execute(String.format(
+                    "CREATE TABLE IF NOT EXISTS %s PARTITION OF %s FOR VALUES FROM (%d) TO (%d)",
+                    name(month), table, lowerBound(month), lowerBound(month.plusMonths(1))));
+            }
+        }
+    }
+
+    static List<String> list(Connection con) throws SQLException {
+        var names = new ArrayList<String>();
+        try (var stmt = con.prepareStatement("""
+                SELECT c.relname FROM pg_inherits i
+                JOIN pg_class c ON c.oid = i.inhrelid
+                JOIN pg_class p ON p.oid = i.inhparent
+                WHERE p.relname = 'messages'""")) {
+            var rs = stmt.executeQuery();
+            while (rs.next()) {
+                names.add(rs.getString(1));
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Migration step: swaps the plain messages table for a partitioned one
+     * holding the same rows.
+     */
+    static void partition(Connection con) throws SQLException {
+        long oldest = -1;
+        try (var stmt = con.createStatement()) {
+            var rs = stmt.executeQuery("SELECT min(id) FROM messages");
+            if (rs.next()) {
+                oldest = rs.getLong(1);
+                if (rs.wasNull()) oldest = -1;
+            }
+        }
+
+        var now = YearMonth.now(ZoneOffset.UTC);
+        var from = oldest >= 0 ? monthOf(oldest) : now;
+        if (from.isAfter(now)) from = now;
+
+        try (var stmt = con.createStatement()) {
+            stmt.execute("""
+                CREATE TABLE messages_partitioned(
+                    id bigint not null,
+                    channelId bigint not null,
+                    username character varying(32) not null,
+                    msg text not null,
+                    CONSTRAINT messages_partitioned_pkey PRIMARY KEY (id)
+                ) PARTITION BY RANGE (id)""");
+            stmt.execute("CREATE INDEX messages_partitioned_channel_id ON messages_partitioned (channelId, id)");
+        }
+        ensure(con, "messages_partitioned", from, now.plusMonths(AHEAD));
+
+        try (var stmt = con.createStatement()) {
+            stmt.execute("INSERT INTO messages_partitioned SELECT id, channelId, username, msg FROM messages");
+            stmt.execute("DROP TABLE messages");
+            stmt.execute("ALTER TABLE messages_partitioned RENAME TO messages");
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package net.sohio.chat;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import com.zaxxer.hikari.metrics.IMetricsTracker;
+import com.zaxxer.hikari.metrics.MetricsTrackerFactory;
+import com.zaxxer.hikari.metrics.PoolStats;
+
+/**
+ * Connection pool figures: how long callers wait for a connection, how
+ * often they give up, and how many connections are in use.
+ */
+class PoolMetrics implements MetricsTrackerFactory {
+    private static Metrics.Histogram wait = new Metrics.Histogram("schat_pool_wait_seconds", "Time spent waiting for a pooled connection.");
+
+    private volatile PoolStats stats;
+    private LongAdder timeouts = new LongAdder();
+
+    @Override
+    public IMetricsTracker create(String poolName, PoolStats poolStats) {
+        this.stats = poolStats;
+        return new IMetricsTracker() {
+            @Override
+            public void recordConnectionAcquiredNanos(long elapsedAcquiredNanos) {
+                wait.observe(elapsedAcquiredNanos);
+            }
+
+            @Override
+            public void recordConnectionTimeout() {
+                timeouts.increment();
+            }
+        };
+    }
+
+    public void write(StringBuilder out) {
+        wait.write(out);
+
+        Metrics.header(out, "schat_pool_timeouts_total", "Requests for a connection that timed out.", "counter");
+        out.append("schat_pool_timeouts_total ").append(timeouts.sum()).append('\n');
+
+        var stats = this.stats;
+        if (stats == null) return;
+
+        Metrics.header(out, "schat_pool_active", "Connections in use.", "gauge");
+        out.append("schat_pool_active ").append(stats.getActiveConnections()).append('\n');
+        Metrics.header(out, "schat_pool_idle", "Idle connections.", "gauge");
+        out.append("schat_pool_idle ").append(stats.getIdleConnections()).append('\n');
+        Metrics.header(out, "schat_pool_pending", "Threads waiting for a connection.", "gauge");
+        out.append("schat_pool_pending ").append(stats.getPendingThreads()).append('\n');
+    }
+}
@@ -0,0 +1,90 @@
+package net.sohio.chat;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Who has a socket open on one channel of this node and who is typing in
+ * it, along with what changed since the last tick.
+ *
+ * Changes only pile up here; the hub sends them out once per tick, so a
+ * burst of joins, leaves and keystrokes costs each socket one frame. A
+ * name stays online while any of its sockets is open, and stops typing
+ * net.sohio.chat.typingMillis after its last typing event. Guarded by
+ * the hub.
+ */
+class Presence {
+    /**
+     * Changes since the last tick. {@code typing} is everyone typing now,
+     * or null if that hasn't changed.
+     */
+    static record Delta(List<String> joined, List<String> left, List<String> typing) {}
+
+    private static long typingMillis = Long.getLong("net.sohio.chat.typingMillis", 5000);
+
+    private Map<String, Integer> online = new TreeMap<>();
+    private Map<String, Long> typing = new TreeMap<>();
+    private Set<String> joined = new TreeSet<>();
+    private Set<String> left = new TreeSet<>();
+    private boolean typingChanged = false;
+
+    public void join(String name) {
+        if (online.merge(name, 1, Integer::sum) > 1) return;
+        // left and came back within a tick
+        if (!left.remove(name)) joined.add(name);
+    }
+
+    public void leave(String name) {
+        var sockets = online.get(name);
+        if (sockets == null) return;
+        if (sockets > 1) {
+            online.put(name, sockets - 1);
+            return;
+        }
+
+        online.remove(name);
+        if (!joined.remove(name)) left.add(name);
+        stoppedTyping(name);
+    }
+
+    public void typing(String name, long now) {
+        if (!online.containsKey(name)) return;
+        if (typing.put(name, now + typingMillis) == null) typingChanged = true;
+    }
+
+    public void stoppedTyping(String name) {
+        if (typing.remove(name) != null) typingChanged = true;
+    }
+
+    public List<String> online() {
+        return List.copyOf(online.keySet());
+    }
+
+    public List<String> typing() {
+        return List.copyOf(typing.keySet());
+    }
+
+    /**
+     * Everything as it stands, for a socket that just subscribed.
+     */
+    public Delta snapshot() {
+        return new Delta(online(), List.of(), typing());
+    }
+
+    /**
+     * The changes since the last tick, or null if there are none.
+     */
+    public Delta tick(long now) {
+        if (typing.values().removeIf(until -> until <= now)) typingChanged = true;
+        if (joined.isEmpty() && left.isEmpty() && !typingChanged) return null;
+
+        var delta = new Delta(List.copyOf(joined), List.copyOf(left), typingChanged ? typing() : null);
+        joined.clear();
+        left.clear();
+        typingChanged = false;
+        return delta;
+    }
+}
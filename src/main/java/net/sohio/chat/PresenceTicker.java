@@ -0,0 +1,52 @@
+package net.sohio.chat;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jetty.util.component.AbstractLifeCycle;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sends out presence changes every net.sohio.chat.presenceMillis, so the
+ * cost of presence grows with the number of channels rather than with
+ * joins, leaves and keystrokes times sockets.
+ */
+class PresenceTicker extends AbstractLifeCycle {
+    private static Logger log = LoggerFactory.getLogger(PresenceTicker.class);
+    private static long presenceMillis = Long.getLong("net.sohio.chat.presenceMillis", 250);
+
+    private Broadcaster broadcaster;
+    private ScheduledExecutorService scheduler;
+
+    public PresenceTicker(Broadcaster broadcaster) {
+        this.broadcaster = broadcaster;
+    }
+
+    @Override
+    protected void doStart() throws Exception {
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            var thread = new Thread(r, "schat-presence");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleAtFixedRate(this::tick, presenceMillis, presenceMillis, TimeUnit.MILLISECONDS);
+        super.doStart();
+    }
+
+    private void tick() {
+        try {
+            broadcaster.tick();
+        } catch (RuntimeException ex) {
+            // keep ticking rather than killing the schedule
+            log.warn("presence tick failed", ex);
+        }
+    }
+
+    @Override
+    protected void doStop() throws Exception {
+        scheduler.shutdownNow();
+        super.doStop();
+    }
+}
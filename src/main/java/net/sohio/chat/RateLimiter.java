@@ -0,0 +1,82 @@
+package net.sohio.chat;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A token bucket per key, allowing {@code perSecond} on average and up to
+ * {@code burst} at once.
+ *
+ * Each bucket is a single AtomicLong holding the time it will next be
+ * full, so taking a token is one CAS and buckets never share a lock. A
+ * bucket that has filled up again is the same as no bucket, which is how
+ * idle keys are swept out of the map.
+ */
+class RateLimiter {
+    // roughly one call in this many sweeps full buckets out
+    private static int SWEEP_EVERY = 1024;
+
+    private String name;
+    private long interval;
+    private long tolerance;
+    private ConcurrentHashMap<String, AtomicLong> buckets = new ConcurrentHashMap<>();
+    private LongAdder limited = new LongAdder();
+
+    /**
+     * A limiter that never limits if {@code perSecond} isn't positive.
+     */
+    RateLimiter(String name, double perSecond, int burst) {
+        this.name = name;
+        this.interval = perSecond > 0 ? (long)(1e9 / perSecond) : 0;
+        this.tolerance = interval * Math.max(burst, 1);
+    }
+
+    public String name() {
+        return name;
+    }
+
+    /**
+     * Requests turned away so far.
+     */
+    public long limited() {
+        return limited.sum();
+    }
+
+    public boolean tryAcquire(String key) {
+        return tryAcquire(key, System.nanoTime());
+    }
+
+    boolean tryAcquire(String key, long now) {
+        if (interval == 0) return true;
+
+        var bucket = buckets.get(key);
+        if (bucket == null) bucket = buckets.computeIfAbsent(key, k -> new AtomicLong(now));
+
+        long full, next;
+        do {
+            full = bucket.get();
+            next = Math.max(full, now) + interval;
+            if (next - now > tolerance) {
+                limited.increment();
+                return false;
+            }
+        } while (!bucket.compareAndSet(full, next));
+
+        if (ThreadLocalRandom.current().nextInt(SWEEP_EVERY) == 0) sweep(now);
+        return true;
+    }
+
+    /**
+     * Drops the buckets that are full again. One being drawn from as it is
+     * dropped may let its key through once more than it should.
+     */
+    void sweep(long now) {
+        buckets.values().removeIf(bucket -> bucket.get() - now <= 0);
+    }
+
+    int size() {
+        return buckets.size();
+    }
+}
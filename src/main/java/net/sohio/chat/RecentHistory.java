@@ -0,0 +1,178 @@
+package net.sohio.chat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Ring buffer of the newest messages in a channel, in snowflake order.
+ *
+ * The buffer holds every message with an id above its floor. Reads that
+ * start at or above the floor are served from memory and count as hits;
+ * anything older is a miss and has to go to the database. Ids are minted
+ * before their rows commit, so a message may arrive after newer ones; it
+ * is put in its place. Not thread-safe, the owning hub serializes access.
+ */
+class RecentHistory {
+    public static record Window(long floor, List<Message> messages) {}
+
+    private static LongAdder hits = new LongAdder();
+    private static LongAdder misses = new LongAdder();
+
+    private Message[] ring;
+    private int head = 0;
+    private int size = 0;
+    private long floor = -1;
+
+    public RecentHistory(int capacity) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("capacity must be positive");
+        ring = new Message[capacity];
+    }
+
+    public static long hits() {
+        return hits.sum();
+    }
+
+    public static long misses() {
+        return misses.sum();
+    }
+
+    public int capacity() {
+        return ring.length;
+    }
+
+    /**
+     * Replaces the contents with the newest messages of a channel, oldest
+     * first. If the list is shorter than the capacity it is taken to be the
+     * whole channel.
+     */
+    public void seed(List<Message> messages) {
+        head = 0;
+        size = 0;
+        floor = -1;
+        if (messages.size() >= ring.length) {
+            floor = messages.get(messages.size() - ring.length).id() - 1;
+        }
+        for (var message : messages) {
+            append(message);
+        }
+    }
+
+    /**
+     * Adds a message in snowflake order. Returns false if the buffer
+     * already has it or it is older than the floor.
+     */
+    public boolean append(Message message) {
+        long id = message.id();
+        if (id <= floor) return false;
+
+        int at = size;
+        while (at > 0 && get(at - 1).id() > id) {
+            at--;
+        }
+        if (at > 0 && get(at - 1).id() == id) return false;
+
+        if (size == ring.length) {
+            if (at == 0) {
+                // older than everything held, so it would go straight out
+                floor = id;
+                return false;
+            }
+            floor = ring[head].id();
+            head = (head + 1) % ring.length;
+            size--;
+            at--;
+        }
+        for (int i = size; i > at; i--) {
+            ring[(head + i) % ring.length] = get(i - 1);
+        }
+        ring[(head + at) % ring.length] = message;
+        size++;
+        return true;
+    }
+
+    public boolean has(long id) {
+        for (int i = size - 1; i >= 0 && get(i).id() >= id; i--) {
+            if (get(i).id() == id) return true;
+        }
+        return false;
+    }
+
+    private Message get(int i) {
+        return ring[(head + i) % ring.length];
+    }
+
+    public long newest() {
+        return size == 0 ? floor : ring[(head + size - 1) % ring.length].id();
+    }
+
+    public long floor() {
+        return floor;
+    }
+
+    /**
+     * Whether {@link #after} can answer for {@code after}.
+     */
+    public boolean covers(long after) {
+        return after >= floor;
+    }
+
+    /**
+     * Messages with an id above {@code after}, or null if the buffer does
+     * not reach back that far.
+     */
+    public List<Message> after(long after) {
+        if (after < floor) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+
+        var messages = new ArrayList<Message>();
+        for (int i = 0; i < size; i++) {
+            var message = ring[(head + i) % ring.length];
+            if (message.id() > after) messages.add(message);
+        }
+        return messages;
+    }
+
+    /**
+     * Up to {@code limit} of the newest messages with an id below
+     * {@code before}, oldest first, or null if the buffer cannot tell
+     * whether older ones exist.
+     */
+    public List<Message> before(long before, int limit) {
+        int end = size;
+        while (end > 0 && ring[(head + end - 1) % ring.length].id() >= before) {
+            end--;
+        }
+        if (end < limit && floor >= 0) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+
+        int start = Math.max(0, end - limit);
+        var messages = new ArrayList<Message>(end - start);
+        for (int i = start; i < end; i++) {
+            messages.add(ring[(head + i) % ring.length]);
+        }
+        return messages;
+    }
+
+    /**
+     * The whole buffer along with its floor. Counts as a hit only if the
+     * buffer holds the entire channel.
+     */
+    public Window window() {
+        if (floor < 0) hits.increment();
+        else misses.increment();
+
+        var messages = new ArrayList<Message>(size);
+        for (int i = 0; i < size; i++) {
+            messages.add(ring[(head + i) % ring.length]);
+        }
+        return new Window(floor, messages);
+    }
+}
@@ -0,0 +1,135 @@
+package net.sohio.chat;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.YearMonth;
+import java.time.ZoneOffset;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.sql.DataSource;
+
+import org.eclipse.jetty.util.component.AbstractLifeCycle;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps the monthly partitions of messages in shape: creates the next
+ * months' partitions ahead of time, and retires months older than
+ * net.sohio.chat.retentionMonths (never, if 0).
+ *
+ * A retired month is detached and dropped, or with
+ * net.sohio.chat.archivePartitions only detached, leaving its table for
+ * pg_dump. With an {@link Archive}, its messages are copied into the
+ * archive first, so they can still be scrolled back to. Runs at startup
+ * and then every few hours, on one node at a time.
+ */
+class RetentionJob extends AbstractLifeCycle {
+    private static Logger log = LoggerFactory.getLogger(RetentionJob.class);
+
+    private static int retentionMonths = Integer.getInteger("net.sohio.chat.retentionMonths", 0);
+    private static boolean detachOnly = Boolean.getBoolean("net.sohio.chat.archivePartitions");
+    private static long PERIOD_HOURS = 6;
+    private static long LOCK = 0x5c4a7_0002L;
+
+    private DataSource ds;
+    private Archive archive;
+    private ScheduledExecutorService scheduler;
+
+    public RetentionJob(DataSource ds, Archive archive) {
+        this.ds = ds;
+        this.archive = archive;
+    }
+
+    @Override
+    protected void doStart() throws Exception {
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            var thread = new Thread(r, "schat-retention");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::run, 0, PERIOD_HOURS, TimeUnit.HOURS);
+        super.doStart();
+    }
+
+    @Override
+    protected void doStop() throws Exception {
+        scheduler.shutdownNow();
+        super.doStop();
+    }
+
+    private void run() {
+        try (var con = ds.getConnection()) {
+            con.setAutoCommit(true);
+            try (var stmt = con.prepareStatement("SELECT pg_try_advisory_lock(?)")) {
+                stmt.setLong(1, LOCK);
+                var rs = stmt.executeQuery();
+                // another node is at it
+                if (!rs.next() || !rs.getBoolean(1)) return;
+            }
+
+            try {
+                var now = YearMonth.now(ZoneOffset.UTC);
+                Partitions.ensure(con, "messages", now, now.plusMonths(Partitions.AHEAD));
+
+                if (retentionMonths <= 0) return;
+                var oldest = now.minusMonths(retentionMonths);
+                for (var name : Partitions.list(con)) {
+                    var month = Partitions.parse(name);
+                    if (month == null || !month.isBefore(oldest)) continue;
+
+                    if (archive != null) {
+                        log.info("moving partition {} to the archive", name);
+                        archive(con, name);
+                    }
+
+                    log.info("{} partition {}", detachOnly ? "detaching" : "dropping", name);
+                    try (var stmt = con.createStatement()) {
+                        stmt.execute("ALTER TABLE messages DETACH PARTITION " + name);
+                        if (!detachOnly) stmt.execute("DROP TABLE " + name);
+                    }
+                }
+            } finally {
+                try (var stmt = con.prepareStatement("SELECT pg_advisory_unlock(?)")) {
+                    stmt.setLong(1, LOCK);
+                    stmt.execute();
+                }
+            }
+        } catch (SQLException | IOException | RuntimeException ex) {
+            // try again next time rather than killing the schedule
+            log.warn("partition maintenance failed", ex);
+        }
+    }
+
+    /**
+     * Copies a partition's messages into the archive, channel by channel.
+     * The partition is still attached meanwhile, so nothing goes missing
+     * from history while this runs.
+     */
+    private void archive(Connection con, String partition) throws SQLException, IOException {
+        // rows are only streamed inside a transaction
+        con.setAutoCommit(false);
+        Archive.Writer writer = null;
+        try (var stmt = con.prepareStatement("SELECT id, channelId, username, msg FROM " + partition + " ORDER BY channelId, id")) {
+            stmt.setFetchSize(1000);
+            var rs = stmt.executeQuery();
+            long channelId = -1;
+            while (rs.next()) {
+                if (writer == null || rs.getLong("channelId") != channelId) {
+                    if (writer != null) writer.close();
+                    channelId = rs.getLong("channelId");
+                    writer = archive.writer(channelId);
+                }
+                writer.append(Message.from(rs));
+            }
+            if (writer != null) writer.close();
+            writer = null;
+        } finally {
+            if (writer != null) writer.abort();
+            con.rollback();
+            con.setAutoCommit(true);
+        }
+    }
+}
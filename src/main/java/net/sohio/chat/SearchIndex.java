@@ -0,0 +1,296 @@
+package net.sohio.chat;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.sql.DataSource;
+
+import org.eclipse.jetty.util.component.AbstractLifeCycle;
+
+/**
+ * An inverted index of every channel: for each word, the snowflakes of the
+ * messages containing it, in order.
+ *
+ * The broadcaster feeds it the same notifications it routes to the hubs.
+ * A notification that carries its message is indexed as is; any other
+ * reads back the rows past the newest snowflake indexed, from
+ * net.sohio.chat.lateMillis below it for rows that committed late. With
+ * net.sohio.chat.search at rebuild, the default, the index reads the whole
+ * messages table the same way once the server starts it, and searches
+ * answer 503 until that is done. At live, only messages posted from
+ * startup on are indexed, and at off there is no search.
+ *
+ * Retired months stay in the index, and their hits are read back from the
+ * archive. Without an archive they are gone, and once a search turns one
+ * up, everything up to it is dropped from its channel's index, since
+ * months are retired oldest first.
+ *
+ * Updates run one at a time on a serial executor. A search intersects the
+ * posting lists from the newest end under the channel's lock, which it
+ * holds for microseconds.
+ */
+class SearchIndex extends AbstractLifeCycle {
+    private static String mode = System.getProperty("net.sohio.chat.search", "rebuild");
+    private static int MAX_TERM_CHARS = 64;
+    private static int MAX_QUERY_TERMS = 8;
+    private static int BATCH = 10_000;
+
+    private static LongAdder postings = new LongAdder();
+
+    /**
+     * The snowflakes of the messages containing one word, ascending.
+     */
+    private static class Postings {
+        private long[] ids = new long[4];
+        private int size = 0;
+
+        void add(long id) {
+            int at = size;
+            // notifications from other nodes may arrive a little out of order
+            if (size > 0 && id <= ids[size - 1]) {
+                at = Arrays.binarySearch(ids, 0, size, id);
+                if (at >= 0) return;
+                at = -at - 1;
+            }
+            if (size == ids.length) ids = Arrays.copyOf(ids, size * 2);
+            System.arraycopy(ids, at, ids, at + 1, size - at);
+            ids[at] = id;
+            size++;
+            postings.increment();
+        }
+
+        /**
+         * Drops the snowflakes up to {@code upTo}.
+         */
+        void retire(long upTo) {
+            int at = Arrays.binarySearch(ids, 0, size, upTo);
+            int cut = at < 0 ? -at - 1 : at + 1;
+            if (cut == 0) return;
+            System.arraycopy(ids, cut, ids, 0, size - cut);
+            size -= cut;
+            postings.add(-cut);
+        }
+    }
+
+    /**
+     * One channel's words.
+     */
+    static class ChannelIndex {
+        private HashMap<String, Postings> terms = new HashMap<>();
+        private long retired = -1;
+
+        synchronized void add(Message message) {
+            if (message.id() <= retired) return;
+            for (var term : terms(message.msg())) {
+                terms.computeIfAbsent(term, t -> new Postings()).add(message.id());
+            }
+        }
+
+        /**
+         * Up to {@code limit} snowflakes older than {@code before} of
+         * messages containing every one of {@code words}, newest first.
+         */
+        synchronized long[] search(Set<String> words, long before, int limit) {
+            if (words.isEmpty()) return new long[0];
+
+            var lists = new Postings[words.size()];
+            int n = 0;
+            for (var word : words) {
+                var list = terms.get(word);
+                if (list == null) return new long[0];
+                lists[n++] = list;
+            }
+            // walk the rarest word, probing the others
+            Arrays.sort(lists, (a, b) -> Integer.compare(a.size, b.size));
+
+            // every probe narrows where the next, older one can be
+            var ends = new int[lists.length];
+            for (int j = 0; j < lists.length; j++) {
+                ends[j] = lists[j].size;
+            }
+
+            var found = new long[limit];
+            int count = 0;
+            int i = Arrays.binarySearch(lists[0].ids, 0, lists[0].size, before);
+            i = (i < 0 ? -i - 1 : i) - 1;
+            candidates:
+            for (; i >= 0 && count < limit; i--) {
+                long id = lists[0].ids[i];
+                for (int j = 1; j < lists.length; j++) {
+                    int at = Arrays.binarySearch(lists[j].ids, 0, ends[j], id);
+                    ends[j] = at < 0 ? -at - 1 : at;
+                    if (at < 0) continue candidates;
+                }
+                found[count++] = id;
+            }
+            return Arrays.copyOf(found, count);
+        }
+
+        /**
+         * Forgets every message up to {@code upTo}, whose rows are gone.
+         */
+        synchronized void retire(long upTo) {
+            if (upTo <= retired) return;
+            retired = upTo;
+            terms.values().removeIf(list -> {
+                list.retire(upTo);
+                return list.size == 0;
+            });
+        }
+    }
+
+    private DataSource ds;
+    private SerialExecutor updates;
+    private ConcurrentHashMap<String, ChannelIndex> channels = new ConcurrentHashMap<>();
+    private long newest = -1;
+    private volatile boolean ready = false;
+
+    private SearchIndex(DataSource ds, Executor executor) {
+        this.ds = ds;
+        this.updates = new SerialExecutor(executor);
+    }
+
+    /**
+     * The index net.sohio.chat.search asks for, or null if it is off. Add
+     * it to the server, which starts any rebuild once its thread pool
+     * runs.
+     */
+    public static SearchIndex configure(DataSource ds, Executor executor) throws SQLException {
+        if ("off".equals(mode)) return null;
+
+        var index = new SearchIndex(ds, executor);
+        if ("live".equals(mode)) {
+            try (var con = ds.getConnection()) {
+                con.setAutoCommit(true);
+                try (var stmt = con.prepareStatement("SELECT coalesce(max(id), -1) FROM messages")) {
+                    var rs = stmt.executeQuery();
+                    if (rs.next()) index.newest = rs.getLong(1);
+                }
+            }
+            index.ready = true;
+        }
+        return index;
+    }
+
+    @Override
+    protected void doStart() throws Exception {
+        if (!ready) updates.execute(this::catchUp);
+        super.doStart();
+    }
+
+    public static long postings() {
+        return postings.sum();
+    }
+
+    /**
+     * The distinct words of {@code text}: runs of letters and digits,
+     * lowercased.
+     */
+    static Set<String> terms(String text) {
+        var terms = new LinkedHashSet<String>();
+        var lower = text.toLowerCase(Locale.ROOT);
+        int start = -1;
+        for (int i = 0; i <= lower.length(); i++) {
+            boolean word = i < lower.length() && Character.isLetterOrDigit(lower.charAt(i));
+            if (word && start < 0) {
+                start = i;
+            } else if (!word && start >= 0) {
+                if (i - start <= MAX_TERM_CHARS) terms.add(lower.substring(start, i));
+                start = -1;
+            }
+        }
+        return terms;
+    }
+
+    public boolean ready() {
+        return ready;
+    }
+
+    /**
+     * Up to {@code limit} snowflakes older than {@code before} of messages
+     * in {@code channel} containing every word of {@code query}, newest
+     * first.
+     */
+    public long[] search(String channel, String query, long before, int limit) {
+        var index = channels.get(channel);
+        if (index == null) return new long[0];
+
+        var words = terms(query);
+        if (words.size() > MAX_QUERY_TERMS) {
+            words = new LinkedHashSet<>(new ArrayList<>(words).subList(0, MAX_QUERY_TERMS));
+        }
+        return index.search(words, before, limit);
+    }
+
+    /**
+     * Forgets the messages of {@code channel} up to {@code upTo}, which a
+     * search found neither stored nor archived.
+     */
+    public void retire(String channel, long upTo) {
+        var index = channels.get(channel);
+        if (index != null) index.retire(upTo);
+    }
+
+    public void dispatch(Notification notification) {
+        updates.execute(() -> {
+            if (notification.hasMessage()) {
+                add(notification.channel(), notification.message());
+            } else {
+                catchUp();
+            }
+        });
+    }
+
+    /**
+     * Reads back whatever was committed while notifications were not
+     * arriving.
+     */
+    public void replay() {
+        updates.execute(this::catchUp);
+    }
+
+    private void add(String channel, Message message) {
+        channels.computeIfAbsent(channel, c -> new ChannelIndex()).add(message);
+        newest = Math.max(newest, message.id());
+    }
+
+    private void catchUp() {
+        try (var con = ds.getConnection()) {
+            con.setAutoCommit(true);
+            try (var stmt = con.prepareStatement("""
+                    SELECT m.id, c.name, m.username, m.msg
+                    FROM messages m JOIN channels c ON c.id = m.channelId
+                    WHERE m.id > ? ORDER BY m.id LIMIT ?""")) {
+                // until the first catch-up is done, the rows notified so far
+                // are all that is indexed; rows already indexed are skipped
+                // by their postings
+                long after = ready ? Notification.lateFrom(newest) : -1;
+                int read;
+                do {
+                    stmt.setLong(1, after);
+                    stmt.setInt(2, BATCH);
+                    var rs = stmt.executeQuery();
+                    read = 0;
+                    while (rs.next()) {
+                        var message = Message.from(rs);
+                        add(rs.getString("name"), message);
+                        after = message.id();
+                        read++;
+                    }
+                } while (read == BATCH);
+            }
+            // a failed rebuild is finished by the next catch-up
+            ready = true;
+        } catch (SQLException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+}
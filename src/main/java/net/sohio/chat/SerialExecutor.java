@@ -0,0 +1,52 @@
+package net.sohio.chat;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs tasks one at a time, in submission order, on another executor.
+ */
+class SerialExecutor implements Executor {
+    private static Logger log = LoggerFactory.getLogger(SerialExecutor.class);
+
+    private Executor executor;
+    private Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private AtomicBoolean running = new AtomicBoolean();
+
+    public SerialExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        tasks.add(task);
+        schedule();
+    }
+
+    private void schedule() {
+        if (!tasks.isEmpty() && running.compareAndSet(false, true)) {
+            executor.execute(this::drain);
+        }
+    }
+
+    private void drain() {
+        try {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (Throwable x) {
+                    log.warn("task failed", x);
+                }
+            }
+        } finally {
+            running.set(false);
+            schedule();
+        }
+    }
+}
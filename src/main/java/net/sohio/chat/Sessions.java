@@ -0,0 +1,166 @@
+package net.sohio.chat;
+
+import java.security.SecureRandom;
+import java.util.Base64;
+
+import javax.sql.DataSource;
+
+import org.eclipse.jetty.http.HttpCookie;
+import org.eclipse.jetty.server.Handler;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Response;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.session.AbstractSessionCacheFactory;
+import org.eclipse.jetty.session.DatabaseAdaptor;
+import org.eclipse.jetty.session.DefaultSessionCacheFactory;
+import org.eclipse.jetty.session.JDBCSessionDataStoreFactory;
+import org.eclipse.jetty.session.NullSessionCacheFactory;
+import org.eclipse.jetty.session.SessionHandler;
+
+/**
+ * Where a user's name lives between requests, chosen with
+ * net.sohio.chat.sessions:
+ *
+ * <ul>
+ * <li>{@code jdbc} (the default): no cache, so every request reads its
+ * session from Postgres and writes it back.</li>
+ * <li>{@code cached}: sessions stay in memory and are written back after
+ * the response, and only when an attribute changed or
+ * net.sohio.chat.sessionSaveSeconds have passed. A session idle for
+ * net.sohio.chat.sessionIdleSeconds is saved and dropped from memory,
+ * which bounds the cache by the number of recently active users. A node
+ * keeps using its own copy of a session while it is cached, so with more
+ * than one node the proxy has to send each user back to the same one.</li>
+ * <li>{@code cookie}: no server-side session at all. The name travels in
+ * a {@link SignedCookie} along with a random visitor id, so a post never
+ * touches the session store.</li>
+ * </ul>
+ *
+ * Names need not be unique, so whatever has to tell users apart uses
+ * {@link #visitor} instead.
+ */
+class Sessions {
+    private static String COOKIE = "schat-user";
+
+    private static String mode = System.getProperty("net.sohio.chat.sessions", "jdbc");
+    private static int idleSeconds = Integer.getInteger("net.sohio.chat.sessionIdleSeconds", 1800);
+    private static int saveSeconds = Integer.getInteger("net.sohio.chat.sessionSaveSeconds", 600);
+
+    private static SignedCookie signer = "cookie".equals(mode) ? SignedCookie.fromProperties() : null;
+    private static SecureRandom random = new SecureRandom();
+
+    private Sessions() {}
+
+    /**
+     * Adds the session cache and store to the server, unless sessions live
+     * in cookies.
+     */
+    public static void configure(Server server, DataSource ds) {
+        AbstractSessionCacheFactory cacheFactory;
+        switch (mode) {
+            case "cookie":
+                return;
+            case "jdbc":
+                cacheFactory = new NullSessionCacheFactory();
+                cacheFactory.setFlushOnResponseCommit(true);
+                break;
+            case "cached":
+                var defaultFactory = new DefaultSessionCacheFactory();
+                defaultFactory.setEvictionPolicy(idleSeconds);
+                defaultFactory.setSaveOnInactiveEviction(true);
+                cacheFactory = defaultFactory;
+                break;
+            default:
+                throw new IllegalArgumentException("unknown session mode " + mode);
+        }
+        cacheFactory.setRemoveUnloadableSessions(true);
+        server.addBean(cacheFactory);
+
+        var dbAdaptor = new DatabaseAdaptor();
+        dbAdaptor.setDatasource(ds);
+        var datastoreFactory = new JDBCSessionDataStoreFactory();
+        datastoreFactory.setDatabaseAdaptor(dbAdaptor);
+        if (!"jdbc".equals(mode)) {
+            // unchanged sessions are written at most this often
+            datastoreFactory.setSavePeriodSec(saveSeconds);
+        }
+        server.addBean(datastoreFactory);
+    }
+
+    public static Handler wrap(Handler handler) {
+        if (signer != null) return handler;
+
+        var session = new SessionHandler();
+        session.setHandler(handler);
+        return session;
+    }
+
+    /**
+     * The name of whoever sent {@code req}, naming them first if needed.
+     */
+    public static String username(Request req, Response resp) {
+        if (signer == null) {
+            var sesh = req.getSession(true);
+            var username = (String)sesh.getAttribute("username");
+            if (username == null) {
+                username = "myUsername";
+                sesh.setAttribute("username", username);
+            }
+            return username;
+        }
+
+        var username = existingUsername(req);
+        if (username == null) {
+            username = "myUsername";
+            var visitor = new byte[16];
+            random.nextBytes(visitor);
+            var value = Base64.getUrlEncoder().withoutPadding().encodeToString(visitor) + ":" + username;
+            Response.addCookie(resp, HttpCookie.build(COOKIE, signer.sign(value))
+                .path(Request.getContextPath(req) + "/")
+                .httpOnly(true)
+                .sameSite(HttpCookie.SameSite.LAX)
+                .maxAge(365L * 24 * 60 * 60)
+                .build());
+        }
+        return username;
+    }
+
+    /**
+     * The name of whoever sent {@code req}, or null if they have none yet.
+     */
+    public static String existingUsername(Request req) {
+        if (signer == null) {
+            var sesh = req.getSession(false);
+            return sesh != null ? (String)sesh.getAttribute("username") : null;
+        }
+
+        var value = cookie(req);
+        int colon = value != null ? value.indexOf(':') : -1;
+        return colon >= 0 ? value.substring(colon + 1) : null;
+    }
+
+    /**
+     * An id of whoever sent {@code req} that nobody else has, or null if
+     * they have none yet.
+     */
+    public static String visitor(Request req) {
+        if (signer == null) {
+            var sesh = req.getSession(false);
+            return sesh != null ? sesh.getId() : null;
+        }
+
+        var value = cookie(req);
+        int colon = value != null ? value.indexOf(':') : -1;
+        return colon >= 0 ? value.substring(0, colon) : null;
+    }
+
+    private static String cookie(Request req) {
+        for (var cookie : Request.getCookies(req)) {
+            if (COOKIE.equals(cookie.getName())) {
+                var value = signer.verify(cookie.getValue());
+                if (value != null) return value;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,75 @@
+package net.sohio.chat;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * A value that the client keeps and cannot forge, signed with HMAC-SHA256.
+ *
+ * The key comes from net.sohio.chat.cookieKey (base64). Without it every
+ * start picks a random key, which logs everyone out on restart and only
+ * works with a single node.
+ */
+class SignedCookie {
+    private static Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+    private static Base64.Decoder decoder = Base64.getUrlDecoder();
+
+    private SecretKeySpec key;
+
+    public SignedCookie(byte[] key) {
+        this.key = new SecretKeySpec(key, "HmacSHA256");
+    }
+
+    public static SignedCookie fromProperties() {
+        byte[] key;
+        if (System.getProperty("net.sohio.chat.cookieKey") instanceof String encoded) {
+            key = Base64.getDecoder().decode(encoded);
+        } else {
+            key = new byte[32];
+            new SecureRandom().nextBytes(key);
+        }
+        return new SignedCookie(key);
+    }
+
+    public String sign(String value) {
+        var bytes = value.getBytes(StandardCharsets.UTF_8);
+        return encoder.encodeToString(bytes) + "." + encoder.encodeToString(mac(bytes));
+    }
+
+    /**
+     * The signed value, or null if {@code cookie} is malformed or was not
+     * signed with this key.
+     */
+    public String verify(String cookie) {
+        if (cookie == null) return null;
+
+        int dot = cookie.indexOf('.');
+        if (dot < 0) return null;
+
+        try {
+            var bytes = decoder.decode(cookie.substring(0, dot));
+            var signature = decoder.decode(cookie.substring(dot + 1));
+            if (!MessageDigest.isEqual(signature, mac(bytes))) return null;
+            return new String(bytes, StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException ex) {
+            return null;
+        }
+    }
+
+    private byte[] mac(byte[] bytes) {
+        try {
+            // cheap to set up, and unlike a cached one safe on any thread
+            var mac = Mac.getInstance("HmacSHA256");
+            mac.init(key);
+            return mac.doFinal(bytes);
+        } catch (GeneralSecurityException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+}
@@ -11,10 +11,10 @@ record Snowflake(long rep) implements Comparable<Snowflake> {
     }
 
     public Snowflake(Instant timestamp, short unsignedSequence) throws IllegalArgumentException {
-        this(instantToTs(timestamp), unsignedSequence);
+        this(tsOf(timestamp), unsignedSequence);
     }
 
-    private static long instantToTs(Instant timestamp) {
+    static long tsOf(Instant timestamp) {
         return EPOCH.until(timestamp, ChronoUnit.MILLIS);
     }
 
@@ -39,10 +39,10 @@ record Snowflake(long rep) implements Comparable<Snowflake> {
     public Snowflake increment(Instant timestamp) {
         long ts = ts();
         long sequence = sequence();
-        long now = instantToTs(timestamp);
+        long now = tsOf(timestamp);
 
         if (ts >= now) {
-            if (sequence == Short.MIN_VALUE) { // actually max
+            if (sequence == 0xFFFF) {
                 return new Snowflake(ts+1, (short)0);
             } else {
                 return new Snowflake(ts, (short)(sequence+1));
@@ -0,0 +1,22 @@
+package net.sohio.chat;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A receiver of live updates from a {@link ChannelHub}. The cursor is the
+ * newest snowflake delivered so far and is guarded by the hub. The wire
+ * format is fixed before subscribing. The username, null for someone
+ * without one, is what the channel's presence shows.
+ */
+abstract class Subscriber {
+    long lastSnowflake = -1;
+    Wire wire = Wire.HTML;
+    String username;
+
+    final void deliver(ByteBuffer fragment, long upTo) {
+        lastSnowflake = upTo;
+        send(fragment);
+    }
+
+    protected abstract void send(ByteBuffer fragment);
+}
@@ -0,0 +1,58 @@
+package net.sohio.chat;
+
+import java.io.Writer;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.thymeleaf.ITemplateEngine;
+import org.thymeleaf.TemplateEngine;
+import org.thymeleaf.context.Context;
+import org.thymeleaf.templatemode.TemplateMode;
+import org.thymeleaf.templateresolver.ClassLoaderTemplateResolver;
+
+/**
+ * The shared template engine.
+ *
+ * Templates are parsed once and cached. Set net.sohio.chat.devTemplates to
+ * re-read them from the classpath on every render while editing them.
+ */
+class Templates {
+    private static Logger log = LoggerFactory.getLogger(Templates.class);
+
+    private static boolean dev = Boolean.getBoolean("net.sohio.chat.devTemplates");
+    private static ITemplateEngine engine = buildEngine(!dev);
+
+    private Templates() {}
+
+    public static ITemplateEngine engine() {
+        return engine;
+    }
+
+    /**
+     * Initializes the engine and parses the templates into its cache, so
+     * the first page view doesn't pay for it. Selecting nothing parses
+     * the whole template without evaluating any expression.
+     */
+    static void warm() {
+        try {
+            engine.process("chat", Set.of("#warm-up"), new Context(), Writer.nullWriter());
+        } catch (RuntimeException ex) {
+            // the first render will show what's wrong
+            log.warn("template warm-up failed", ex);
+        }
+    }
+
+    static ITemplateEngine buildEngine(boolean cacheable) {
+        var resolver = new ClassLoaderTemplateResolver();
+
+        resolver.setTemplateMode(TemplateMode.HTML);
+        resolver.setPrefix("/net/sohio/chat/templates/");
+        resolver.setSuffix(".html");
+        resolver.setCacheable(cacheable);
+
+        var engine = new TemplateEngine();
+        engine.setTemplateResolver(resolver);
+        return engine;
+    }
+}
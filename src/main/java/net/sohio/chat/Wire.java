@@ -0,0 +1,112 @@
+package net.sohio.chat;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Locale;
+
+import org.eclipse.jetty.websocket.core.OpCode;
+
+import com.google.gson.Gson;
+
+/**
+ * How live updates are written to a socket, picked by the client in its
+ * first message.
+ *
+ * Every format can be concatenated, so the outbound queue may still
+ * coalesce several updates into one frame:
+ *
+ * <ul>
+ * <li>{@code html}: {@code #messages} fragments for htmx, the default.</li>
+ * <li>{@code json}: one object per line with the snowflake as a string,
+ * since it does not fit in a JavaScript number.</li>
+ * <li>{@code binary}: per message a big-endian snowflake, then the
+ * username and the message, each as a 32-bit length and UTF-8 bytes.
+ * Headers and presence changes are records of the same shape with a
+ * negative snowflake, so one reader can walk them all.</li>
+ * </ul>
+ *
+ * A socket subscribed to several channels gets a {@link #header} before
+ * each update, naming the channel the messages after it belong to.
+ * Presence changes come as a {@link #presence} update.
+ */
+enum Wire {
+    HTML, JSON, BINARY;
+
+    private static record JsonMessage(String id, String username, String msg) {}
+    private static record JsonHeader(String channel) {}
+    private static record JsonPresence(Presence.Delta presence) {}
+
+    private static Gson gson = new Gson();
+
+    /**
+     * The format called {@code name}, HTML if there is none.
+     */
+    public static Wire of(String name) {
+        if (name == null) return HTML;
+        return valueOf(name.toUpperCase(Locale.ROOT));
+    }
+
+    public byte opCode() {
+        return this == BINARY ? OpCode.BINARY : OpCode.TEXT;
+    }
+
+    /**
+     * Switches the channel of the messages that follow: a JSON line with
+     * just a channel, or a binary record with snowflake -1, the name in
+     * place of the username and an empty message.
+     */
+    public ByteBuffer header(String channel) {
+        var name = channel.getBytes(StandardCharsets.UTF_8);
+        var out = switch (this) {
+            case JSON -> ByteBuffer.wrap((gson.toJson(new JsonHeader(channel)) + "\n").getBytes(StandardCharsets.UTF_8));
+            case BINARY -> ByteBuffer.allocate(16 + name.length).putLong(-1).putInt(name.length).put(name).putInt(0).flip();
+            case HTML -> throw new IllegalStateException("HTML fragments always go to #messages");
+        };
+        return out.asReadOnlyBuffer();
+    }
+
+    /**
+     * A presence change: a JSON line with just a presence object, or a
+     * binary record with snowflake -2, no username and the same object as
+     * the message. Not for HTML, which re-renders {@code #presence}.
+     */
+    public ByteBuffer presence(Presence.Delta delta) {
+        var out = switch (this) {
+            case JSON -> ByteBuffer.wrap((gson.toJson(new JsonPresence(delta)) + "\n").getBytes(StandardCharsets.UTF_8));
+            case BINARY -> {
+                var json = gson.toJson(delta).getBytes(StandardCharsets.UTF_8);
+                yield ByteBuffer.allocate(16 + json.length).putLong(-2).putInt(0).putInt(json.length).put(json).flip();
+            }
+            case HTML -> throw new IllegalStateException("HTML sockets get #presence re-rendered");
+        };
+        return out.asReadOnlyBuffer();
+    }
+
+    static ByteBuffer json(List<Message> messages) {
+        var out = new StringBuilder(messages.size() * 96);
+        for (var message : messages) {
+            gson.toJson(new JsonMessage(Long.toString(message.id()), message.username(), message.msg()), out);
+            out.append('\n');
+        }
+        return ByteBuffer.wrap(out.toString().getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
+    }
+
+    static ByteBuffer binary(List<Message> messages) {
+        var encoded = new byte[messages.size() * 2][];
+        int size = 0;
+        for (int i = 0; i < messages.size(); i++) {
+            encoded[2 * i] = messages.get(i).username().getBytes(StandardCharsets.UTF_8);
+            encoded[2 * i + 1] = messages.get(i).msg().getBytes(StandardCharsets.UTF_8);
+            size += 16 + encoded[2 * i].length + encoded[2 * i + 1].length;
+        }
+
+        var out = ByteBuffer.allocate(size);
+        for (int i = 0; i < messages.size(); i++) {
+            out.putLong(messages.get(i).id());
+            out.putInt(encoded[2 * i].length).put(encoded[2 * i]);
+            out.putInt(encoded[2 * i + 1].length).put(encoded[2 * i + 1]);
+        }
+        return out.flip().asReadOnlyBuffer();
+    }
+}
@@ -0,0 +1,76 @@
+package net.sohio.chat;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class ArchiveTest {
+    private static List<Long> ids(List<Message> messages) {
+        return messages.stream().map(Message::id).toList();
+    }
+
+    private static void month(Archive archive, long month) throws IOException {
+        var writer = archive.writer(1);
+        for (long i = 1; i <= 200; i++) {
+            long id = month * 1000 + i;
+            writer.append(new Message(id, "robbie", "message ü" + id));
+        }
+        writer.close();
+    }
+
+    private static Archive archive(Path dir) throws IOException {
+        var archive = new Archive(dir);
+        // two months of channel 1, each its own segment
+        month(archive, 0);
+        month(archive, 1);
+        return archive;
+    }
+
+    @Test
+    public void pagesWithinASegment(@TempDir Path dir) throws IOException {
+        var archive = archive(dir);
+
+        var page = archive.before(1, 151, 10);
+        assertEquals(List.of(141L, 142L, 143L, 144L, 145L, 146L, 147L, 148L, 149L, 150L), ids(page));
+        assertEquals("message ü150", page.get(9).msg());
+        assertEquals("robbie", page.get(9).username());
+    }
+
+    @Test
+    public void pagesAcrossSegments(@TempDir Path dir) throws IOException {
+        var archive = archive(dir);
+
+        var page = archive.before(1, 1003, 5);
+        assertEquals(List.of(199L, 200L, 1001L, 1002L), ids(page.subList(1, 5)));
+        assertEquals(198L, page.get(0).id());
+
+        assertEquals(400, archive.before(1, Long.MAX_VALUE, Integer.MAX_VALUE).size());
+        assertEquals(List.of(1L, 2L), ids(archive.before(1, 3, 100)));
+    }
+
+    @Test
+    public void unknownChannelsAreEmpty(@TempDir Path dir) throws IOException {
+        var archive = archive(dir);
+        assertTrue(archive.before(2, Long.MAX_VALUE, 10).isEmpty());
+        assertTrue(archive.before(1, 1, 10).isEmpty());
+    }
+
+    @Test
+    public void monthsArchivedElsewhereShowUp(@TempDir Path dir) throws IOException {
+        var archiver = new Archive(dir);
+        var reader = new Archive(dir);
+        assertTrue(reader.before(1, Long.MAX_VALUE, 10).isEmpty());
+
+        month(archiver, 0);
+        assertEquals(200, reader.before(1, Long.MAX_VALUE, Integer.MAX_VALUE).size());
+
+        month(archiver, 1);
+        assertEquals(400, reader.before(1, Long.MAX_VALUE, Integer.MAX_VALUE).size());
+    }
+}
@@ -0,0 +1,80 @@
+package net.sohio.chat;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.HashSet;
+
+import org.junit.jupiter.api.Test;
+
+public class AtomicSnowflakeTest {
+    @Test
+    public void countsWithinAMillisecond() {
+        var counter = new AtomicSnowflake();
+        long first = counter.next(1000);
+        long second = counter.next(1000);
+
+        assertEquals(1000L << 16, first);
+        assertEquals(first + 1, second);
+    }
+
+    @Test
+    public void overflowBorrowsTheNextMillisecond() {
+        // 12 node bits leave 4 bits, 16 ids, per millisecond
+        var counter = new AtomicSnowflake(null, 12, 5);
+        long last = -1;
+        for (int i = 0; i < 16; i++) {
+            last = counter.next(1000);
+        }
+        assertEquals(1000, last >>> 16);
+
+        long borrowed = counter.next(1000);
+        assertEquals(1001, borrowed >>> 16);
+        assertEquals(5, (borrowed & 0xFFFF) >>> 4);
+        assertEquals(0, borrowed & 0xF);
+    }
+
+    @Test
+    public void neverGoesBackwards() {
+        var counter = new AtomicSnowflake();
+        long ahead = counter.next(2000);
+
+        assertTrue(counter.next(1000) > ahead);
+    }
+
+    @Test
+    public void startsAfterTheSeed() {
+        var seed = new Snowflake((1000L << 16) | 7);
+        var counter = new AtomicSnowflake(seed, 0, 0);
+
+        assertEquals(1001L << 16, counter.next(1000));
+    }
+
+    @Test
+    public void nodesDoNotCollide() {
+        var a = new AtomicSnowflake(null, 1, 0);
+        var b = new AtomicSnowflake(null, 1, 1);
+        var ids = new HashSet<Long>();
+        for (int i = 0; i < 100_000; i++) {
+            assertTrue(ids.add(a.next(1000)));
+            assertTrue(ids.add(b.next(1000)));
+        }
+    }
+
+    @Test
+    public void nodeMustFitItsBits() {
+        assertThrows(IllegalArgumentException.class, () -> new AtomicSnowflake(null, 2, 4));
+        assertThrows(IllegalArgumentException.class, () -> new AtomicSnowflake(null, 13, 0));
+    }
+
+    @Test
+    public void recordIncrementHandlesOverflow() {
+        var timestamp = Snowflake.EPOCH.plusMillis(1000);
+        var full = new Snowflake(timestamp, (short)0xFFFF);
+        var next = full.increment(timestamp);
+
+        assertEquals(timestamp.plusMillis(1), next.timestamp());
+        assertEquals(0, next.sequence());
+    }
+}
@@ -0,0 +1,117 @@
+package net.sohio.chat;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.sql.DataSource;
+
+import org.eclipse.jetty.util.FutureCallback;
+import org.junit.jupiter.api.Test;
+
+public class BatchWriterTest {
+    private static ChannelRegistry.Channel general = new ChannelRegistry.Channel(1, "general");
+
+    /**
+     * A database that records how many rows each INSERT carries and
+     * throws {@code failure}, if set, from the next one.
+     */
+    private static class Recorder {
+        List<Integer> inserts = new CopyOnWriteArrayList<>();
+        List<String> completions = new CopyOnWriteArrayList<>();
+        AtomicReference<RuntimeException> failure = new AtomicReference<>();
+
+        DataSource ds() {
+            return proxy(DataSource.class, (proxy, method, args) -> method.getName().equals("getConnection") ? connection() : null);
+        }
+
+        private Connection connection() {
+            return proxy(Connection.class, (proxy, method, args) -> {
+                switch (method.getName()) {
+                    case "prepareStatement": return statement((String)args[0]);
+                    case "commit": case "rollback": completions.add(method.getName()); return null;
+                    default: return null;
+                }
+            });
+        }
+
+        private PreparedStatement statement(String sql) {
+            return proxy(PreparedStatement.class, (proxy, method, args) -> {
+                if (method.getName().equals("execute") && sql.startsWith("INSERT")) {
+                    var ex = failure.getAndSet(null);
+                    if (ex != null) throw ex;
+                    inserts.add(sql.split("\\(\\?").length - 1);
+                }
+                return method.getReturnType() == boolean.class ? false : null;
+            });
+        }
+
+        @SuppressWarnings("unchecked")
+        private static <T> T proxy(Class<T> type, java.lang.reflect.InvocationHandler handler) {
+            return (T)Proxy.newProxyInstance(BatchWriterTest.class.getClassLoader(), new Class<?>[] { type }, handler);
+        }
+    }
+
+    @Test
+    public void writesPostsThatArriveTogetherInOneInsert() throws Exception {
+        var db = new Recorder();
+        // a linger far longer than the test, so only the batch size closes a batch
+        var writer = new BatchWriter(db.ds(), Duration.ofMinutes(1), 3, true);
+        writer.start();
+        try {
+            var callbacks = List.of(new FutureCallback(), new FutureCallback(), new FutureCallback());
+            for (int i = 0; i < callbacks.size(); i++) {
+                writer.submit(general, new Message(i + 1, "robbie", "hello " + i), callbacks.get(i));
+            }
+            for (var cb : callbacks) {
+                cb.get(5, TimeUnit.SECONDS);
+            }
+            assertEquals(List.of(3), db.inserts);
+            assertEquals(List.of("commit"), db.completions);
+
+            // stopping flushes a batch that is still lingering
+            var last = new FutureCallback();
+            writer.submit(general, new Message(4, "robbie", "bye"), last);
+            writer.stop();
+            last.get(5, TimeUnit.SECONDS);
+            assertEquals(List.of(3, 1), db.inserts);
+        } finally {
+            writer.stop();
+        }
+    }
+
+    @Test
+    public void failsOnlyTheBatchThatThrew() throws Exception {
+        var db = new Recorder();
+        var writer = new BatchWriter(db.ds(), Duration.ZERO, 1, true);
+        writer.start();
+        try {
+            var bug = new IllegalStateException("bug");
+            db.failure.set(bug);
+            var failed = new FutureCallback();
+            writer.submit(general, new Message(1, "robbie", "hello"), failed);
+            var ex = assertThrows(ExecutionException.class, () -> failed.get(5, TimeUnit.SECONDS));
+            assertSame(bug, ex.getCause());
+            assertEquals(List.of("rollback"), db.completions);
+
+            // the writer is still there for the next post
+            var next = new FutureCallback();
+            writer.submit(general, new Message(2, "robbie", "hello again"), next);
+            next.get(5, TimeUnit.SECONDS);
+            assertEquals(List.of(1), db.inserts);
+            assertEquals(List.of("rollback", "commit"), db.completions);
+        } finally {
+            writer.stop();
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package net.sohio.chat;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import org.junit.jupiter.api.Test;
+
+public class ChannelHubTest {
+    private static Pattern ID = Pattern.compile("\"id\":\"(\\d+)\"");
+
+    /**
+     * Keeps the ids of every JSON update, one list per fragment.
+     */
+    private static class Recorder extends Subscriber {
+        List<List<Long>> updates = new ArrayList<>();
+
+        Recorder() {
+            wire = Wire.JSON;
+        }
+
+        @Override
+        protected void send(ByteBuffer fragment) {
+            var ids = new ArrayList<Long>();
+            var matcher = ID.matcher(StandardCharsets.UTF_8.decode(fragment.slice()));
+            while (matcher.find()) {
+                ids.add(Long.parseLong(matcher.group(1)));
+            }
+            // presence updates carry no messages
+            if (!ids.isEmpty()) updates.add(ids);
+        }
+    }
+
+    private static Message message(long id) {
+        return new Message(id, "robbie", "hello " + id);
+    }
+
+    private static List<Long> ids(List<Message> messages) {
+        return messages.stream().map(Message::id).toList();
+    }
+
+    @Test
+    public void deliversLateMessagesOnceAndKeepsThemInOrder() {
+        var hub = new ChannelHub(new ChannelRegistry.Channel(1, "general"), TestDatabase.empty(), Runnable::run);
+        hub.seed(List.of(message(1), message(2)));
+        var socket = new Recorder();
+        hub.subscribe(socket, 2);
+
+        hub.notification(message(5));
+        // minted before 5 but committed after it
+        hub.notification(message(4));
+        hub.notification(message(4));
+
+        assertEquals(List.of(List.of(5L), List.of(4L)), socket.updates);
+        // the cursor stays at the newest the socket has seen
+        assertEquals(5, socket.lastSnowflake);
+        assertEquals(List.of(1L, 2L, 4L, 5L), ids(hub.recent().messages()));
+    }
+
+    @Test
+    public void readsBackBelowTheCursorForLateRows() {
+        // every query answers with these rows, as if 3 had just committed
+        var rows = List.of(message(3), message(5), message(6));
+        var hub = new ChannelHub(new ChannelRegistry.Channel(1, "general"), TestDatabase.of(rows), Runnable::run);
+        hub.seed(List.of(message(1), message(5)));
+        var socket = new Recorder();
+        hub.subscribe(socket, 5);
+
+        hub.notification();
+
+        assertEquals(List.of(List.of(3L), List.of(6L)), socket.updates);
+        assertEquals(6, socket.lastSnowflake);
+        assertEquals(List.of(1L, 3L, 5L, 6L), ids(hub.recent().messages()));
+    }
+}
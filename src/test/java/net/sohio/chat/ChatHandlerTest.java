@@ -0,0 +1,73 @@
+package net.sohio.chat;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.StringReader;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.handler.ContextHandler;
+import org.eclipse.jetty.websocket.api.StatusCode;
+import org.eclipse.jetty.websocket.core.CoreSession;
+import org.junit.jupiter.api.Test;
+
+public class ChatHandlerTest {
+    @Test
+    public void startsWithTheDefaults() throws Exception {
+        var ds = TestDatabase.empty();
+        var server = new Server();
+        // built before the server and its thread pool start, as App does
+        var handler = ChatHandler.from(server, ds, null, new ListenerSupervisor(ds), new AtomicSnowflake());
+        server.setHandler(new ContextHandler(handler, "/chat"));
+
+        try {
+            server.start();
+            assertTrue(server.isStarted());
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void aSocketClosedWhileSubscribingLeavesTheHub() throws Exception {
+        var hub = new ChannelHub(new ChannelRegistry.Channel(1, "closing"), TestDatabase.empty(), Runnable::run);
+        hub.seed(List.of());
+
+        var pool = Executors.newFixedThreadPool(2);
+        try {
+            for (int i = 0; i < 500; i++) {
+                var socket = new ChatHandler.WebSocketHandler(hub, "robbie") {
+                    @Override
+                    OutboundQueue outbound(Wire wire) {
+                        return new OutboundQueue(new CoreSession.Empty(), wire);
+                    }
+                };
+                // as the open would have
+                ChatHandler.WebSocketHandler.connected.incrementAndGet();
+
+                var start = new CountDownLatch(1);
+                var subscribing = pool.submit(() -> {
+                    start.await();
+                    socket.message(new StringReader("{\"after\":\"-1\",\"mode\":\"json\"}"));
+                    return null;
+                });
+                var closing = pool.submit(() -> {
+                    start.await();
+                    socket.close(StatusCode.NORMAL, null);
+                    return null;
+                });
+                start.countDown();
+                subscribing.get();
+                closing.get();
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+
+        var metrics = new StringBuilder();
+        Metrics.write(metrics);
+        assertTrue(metrics.toString().contains("schat_channel_sockets{channel=\"closing\"} 0\n"), metrics.toString());
+    }
+}
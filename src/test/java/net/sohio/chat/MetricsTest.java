@@ -0,0 +1,26 @@
+package net.sohio.chat;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+public class MetricsTest {
+    @Test
+    public void histogramBucketsAreCumulative() {
+        var histogram = new Metrics.Histogram("test_seconds", "A test.");
+        histogram.observe(200_000);         // 0.2ms
+        histogram.observe(3_000_000);       // 3ms
+        histogram.observe(60_000_000_000L); // a minute
+
+        var out = new StringBuilder();
+        histogram.write(out);
+        var text = out.toString();
+
+        assertTrue(text.contains("# TYPE test_seconds histogram\n"));
+        assertTrue(text.contains("test_seconds_bucket{le=\"0.0005\"} 1\n"));
+        assertTrue(text.contains("test_seconds_bucket{le=\"0.005\"} 2\n"));
+        assertTrue(text.contains("test_seconds_bucket{le=\"10\"} 2\n"));
+        assertTrue(text.contains("test_seconds_bucket{le=\"+Inf\"} 3\n"));
+        assertTrue(text.contains("test_seconds_count 3\n"));
+    }
+}
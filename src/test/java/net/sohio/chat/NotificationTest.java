@@ -0,0 +1,43 @@
+package net.sohio.chat;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+
+public class NotificationTest {
+    @Test
+    public void carriesTheMessage() {
+        var message = new Message(Long.MAX_VALUE, "ünïcode", "\"quoted\"\nand split");
+        var notification = Notification.decode(Notification.encode("general", message));
+
+        assertEquals("general", notification.channel());
+        assertTrue(notification.hasMessage());
+        assertEquals(message, notification.message());
+    }
+
+    @Test
+    public void sendsOnlyTheIdOfAMessageTooBigToFit() {
+        var message = new Message(42, "robbie", "ü".repeat(Notification.MAX_PAYLOAD_BYTES / 2));
+        var payload = Notification.encode("general", message);
+        assertTrue(payload.getBytes(StandardCharsets.UTF_8).length <= Notification.MAX_PAYLOAD_BYTES);
+
+        var notification = Notification.decode(payload);
+        assertEquals("general", notification.channel());
+        assertEquals(42L, notification.id());
+        assertFalse(notification.hasMessage());
+    }
+
+    @Test
+    public void readsTheLegacyChannelName() {
+        var notification = Notification.decode("general");
+
+        assertEquals("general", notification.channel());
+        assertNull(notification.id());
+        assertFalse(notification.hasMessage());
+    }
+}
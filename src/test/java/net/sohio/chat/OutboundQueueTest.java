@@ -0,0 +1,87 @@
+package net.sohio.chat;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.eclipse.jetty.util.Callback;
+import org.eclipse.jetty.websocket.api.StatusCode;
+import org.eclipse.jetty.websocket.core.CoreSession;
+import org.eclipse.jetty.websocket.core.Frame;
+import org.junit.jupiter.api.Test;
+
+public class OutboundQueueTest {
+    /**
+     * A socket that never finishes a send by itself.
+     */
+    private static class StalledSession extends CoreSession.Empty {
+        List<String> frames = new ArrayList<>();
+        List<Callback> inFlight = new ArrayList<>();
+        int closedWith = -1;
+
+        @Override
+        public void sendFrame(Frame frame, Callback callback, boolean batch) {
+            frames.add(frame.getPayloadAsUTF8());
+            inFlight.add(callback);
+        }
+
+        @Override
+        public void close(int statusCode, String reason, Callback callback) {
+            closedWith = statusCode;
+            callback.succeeded();
+        }
+    }
+
+    private static ByteBuffer text(String s) {
+        return ByteBuffer.wrap(s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void coalescesWhatQueuesUpBehindAFrame() {
+        var session = new StalledSession();
+        var queue = new OutboundQueue(session, Wire.JSON);
+
+        queue.send(text("a\n"));
+        queue.send(text("b\n"));
+        queue.send(text("c\n"));
+        assertEquals(List.of("a\n"), session.frames);
+
+        session.inFlight.get(0).succeeded();
+        assertEquals(List.of("a\n", "b\nc\n"), session.frames);
+
+        // a header and its update stay together
+        session.inFlight.get(1).succeeded();
+        queue.send(text("d\n"));
+        queue.send(text("#general\n"), text("e\n"));
+        session.inFlight.get(2).succeeded();
+        assertEquals(List.of("a\n", "b\nc\n", "d\n", "#general\ne\n"), session.frames);
+        assertEquals(-1, session.closedWith);
+    }
+
+    @Test
+    public void evictsASocketTwiceOverItsCap() {
+        var session = new StalledSession();
+        var queue = new OutboundQueue(session, Wire.JSON);
+        long evictions = OutboundQueue.evictions();
+
+        queue.send(text("first\n"));
+        // the default cap is 64 frames, so the 129th queued behind the first
+        // goes over twice the cap without waiting out the grace period
+        for (int i = 0; i < 128; i++) {
+            queue.send(text(i + "\n"));
+        }
+        assertEquals(-1, session.closedWith);
+
+        queue.send(text("one too many\n"));
+        assertEquals(StatusCode.TRY_AGAIN_LATER, session.closedWith);
+        assertEquals(evictions + 1, OutboundQueue.evictions());
+
+        // nothing more goes out once evicted
+        session.inFlight.get(0).succeeded();
+        queue.send(text("after\n"));
+        assertEquals(List.of("first\n"), session.frames);
+    }
+}
@@ -0,0 +1,40 @@
+package net.sohio.chat;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+public class PageCacheTest {
+    @Test
+    public void tagsPagesByWhatTheyRender() {
+        var html = "<p>hello</p>".getBytes(StandardCharsets.UTF_8);
+        var model = Map.<String, Object>of("messages", List.of(new Message(1, "robbie", "hello").toModel()));
+
+        // two nodes, or one before and after a restart
+        var one = new PageCache().put("general", model, html);
+        var other = new PageCache().put("general", Map.copyOf(model), html.clone());
+        assertEquals(one.etag(), other.etag());
+        assertNotEquals(one.etag(), PageCache.etag("<p>hello!</p>".getBytes(StandardCharsets.UTF_8)));
+        assertTrue(PageCache.matches("W/" + one.etag(), other.etag()));
+    }
+
+    @Test
+    public void rendersAgainWhenTheModelChanges() {
+        var cache = new PageCache();
+        var model = Map.<String, Object>of("messages", List.of(new Message(1, "robbie", "hello").toModel()));
+        var page = cache.put("general", model, new byte[] { 1 });
+
+        assertSame(page, cache.get("general", Map.copyOf(model)));
+        // a late message below the newest one
+        assertNull(cache.get("general", Map.of("messages", List.of(new Message(0, "robbie", "late").toModel(), new Message(1, "robbie", "hello").toModel()))));
+        assertNull(cache.get("random", model));
+    }
+}
@@ -0,0 +1,36 @@
+package net.sohio.chat;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.time.YearMonth;
+
+import org.junit.jupiter.api.Test;
+
+public class PartitionsTest {
+    @Test
+    public void monthsCoverTheirSnowflakes() {
+        var month = YearMonth.of(2025, 3);
+        long lower = Partitions.lowerBound(month);
+        long upper = Partitions.lowerBound(month.plusMonths(1));
+
+        assertEquals(month, Partitions.monthOf(lower));
+        assertEquals(month, Partitions.monthOf(upper - 1));
+        assertEquals(month.plusMonths(1), Partitions.monthOf(upper));
+    }
+
+    @Test
+    public void firstMonthStartsAtZero() {
+        // the epoch is 05:00 on the first, so the first month is short
+        assertEquals(0, Partitions.lowerBound(YearMonth.of(2024, 1)));
+        assertEquals(YearMonth.of(2024, 1), Partitions.monthOf(0));
+    }
+
+    @Test
+    public void namesRoundTrip() {
+        var month = YearMonth.of(2026, 11);
+        assertEquals("messages_2026_11", Partitions.name(month));
+        assertEquals(month, Partitions.parse("messages_2026_11"));
+        assertNull(Partitions.parse("messages_partitioned"));
+    }
+}
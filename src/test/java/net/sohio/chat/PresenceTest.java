@@ -0,0 +1,48 @@
+package net.sohio.chat;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+public class PresenceTest {
+    @Test
+    public void coalescesChangesWithinATick() {
+        var presence = new Presence();
+        presence.join("robbie");
+        presence.join("robbie");
+        presence.join("admin");
+        presence.join("ghost");
+        presence.leave("ghost");
+
+        assertEquals(new Presence.Delta(List.of("admin", "robbie"), List.of(), null), presence.tick(0));
+        assertNull(presence.tick(0));
+
+        // one of robbie's two sockets
+        presence.leave("robbie");
+        assertNull(presence.tick(0));
+        presence.leave("robbie");
+        presence.leave("admin");
+        presence.join("admin");
+        assertEquals(new Presence.Delta(List.of(), List.of("robbie"), null), presence.tick(0));
+        assertEquals(List.of("admin"), presence.online());
+    }
+
+    @Test
+    public void typingExpires() {
+        var presence = new Presence();
+        presence.join("robbie");
+        presence.tick(0);
+
+        presence.typing("robbie", 1000);
+        // not subscribed, so not shown
+        presence.typing("nobody", 1000);
+        assertEquals(List.of("robbie"), presence.tick(1000).typing());
+
+        presence.typing("robbie", 2000);
+        assertNull(presence.tick(2000));
+        assertEquals(List.of(), presence.tick(2000 + 5000).typing());
+    }
+}
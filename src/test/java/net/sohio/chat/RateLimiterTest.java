@@ -0,0 +1,56 @@
+package net.sohio.chat;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+public class RateLimiterTest {
+    private static long SECOND = 1_000_000_000L;
+
+    @Test
+    public void allowsABurstThenTheRate() {
+        var limiter = new RateLimiter("test", 2, 3);
+        for (int i = 0; i < 3; i++) {
+            assertTrue(limiter.tryAcquire("robbie", 0));
+        }
+        assertFalse(limiter.tryAcquire("robbie", 0));
+        assertEquals(1, limiter.limited());
+
+        // one token back every half second
+        assertFalse(limiter.tryAcquire("robbie", SECOND / 4));
+        assertTrue(limiter.tryAcquire("robbie", SECOND / 2));
+        assertFalse(limiter.tryAcquire("robbie", SECOND / 2));
+    }
+
+    @Test
+    public void keysHaveTheirOwnBuckets() {
+        var limiter = new RateLimiter("test", 1, 1);
+        assertTrue(limiter.tryAcquire("robbie", 0));
+        assertFalse(limiter.tryAcquire("robbie", 0));
+        assertTrue(limiter.tryAcquire("admin", 0));
+    }
+
+    @Test
+    public void sweepsFullBuckets() {
+        var limiter = new RateLimiter("test", 1, 5);
+        limiter.tryAcquire("robbie", 0);
+        limiter.tryAcquire("admin", 0);
+        limiter.tryAcquire("admin", 0);
+
+        limiter.sweep(SECOND);
+        assertEquals(1, limiter.size());
+        limiter.sweep(2 * SECOND);
+        assertEquals(0, limiter.size());
+    }
+
+    @Test
+    public void zeroRateNeverLimits() {
+        var limiter = new RateLimiter("test", 0, 1);
+        for (int i = 0; i < 100; i++) {
+            assertTrue(limiter.tryAcquire("robbie", 0));
+        }
+        assertEquals(0, limiter.size());
+    }
+}
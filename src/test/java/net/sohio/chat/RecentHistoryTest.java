@@ -0,0 +1,92 @@
+package net.sohio.chat;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+public class RecentHistoryTest {
+    private static Message message(long id) {
+        return new Message(id, "robbie", "hello world");
+    }
+
+    @Test
+    public void shortChannelIsComplete() {
+        var history = new RecentHistory(4);
+        history.seed(List.of(message(1), message(2)));
+
+        assertEquals(-1, history.floor());
+        assertEquals(List.of(message(1), message(2)), history.after(-1));
+        assertEquals(List.of(message(2)), history.after(1));
+    }
+
+    @Test
+    public void evictionRaisesFloor() {
+        var history = new RecentHistory(2);
+        history.seed(List.of());
+        history.append(message(1));
+        history.append(message(2));
+        history.append(message(3));
+
+        assertEquals(1, history.floor());
+        assertEquals(3, history.newest());
+        assertEquals(List.of(message(2), message(3)), history.after(1));
+        assertNull(history.after(0));
+    }
+
+    @Test
+    public void fullSeedIsNotComplete() {
+        var history = new RecentHistory(2);
+        history.seed(List.of(message(5), message(7)));
+
+        assertEquals(4, history.floor());
+        assertNull(history.after(-1));
+        assertEquals(List.of(message(7)), history.window().messages().subList(1, 2));
+    }
+
+    @Test
+    public void lateAppendsGoInOrder() {
+        var history = new RecentHistory(4);
+        history.seed(List.of(message(2), message(5)));
+
+        assertTrue(history.append(message(3)));
+        assertFalse(history.append(message(5)));
+        assertTrue(history.has(3));
+        assertEquals(List.of(message(2), message(3), message(5)), history.window().messages());
+        assertEquals(List.of(message(3), message(5)), history.after(2));
+        assertEquals(5, history.newest());
+    }
+
+    @Test
+    public void lateAppendsEvictTheOldest() {
+        var history = new RecentHistory(3);
+        history.seed(List.of());
+        history.append(message(2));
+        history.append(message(4));
+        history.append(message(6));
+
+        assertTrue(history.append(message(5)));
+        assertEquals(2, history.floor());
+        assertEquals(List.of(message(4), message(5), message(6)), history.window().messages());
+
+        // between the floor and everything held, so gone at once
+        assertFalse(history.append(message(3)));
+        assertEquals(3, history.floor());
+        assertFalse(history.append(message(1)));
+        assertEquals(List.of(message(4), message(5), message(6)), history.window().messages());
+    }
+
+    @Test
+    public void pagesComeFromMemoryWhileTheyFit() {
+        var history = new RecentHistory(3);
+        history.seed(List.of(message(1), message(2), message(3), message(4)));
+
+        assertEquals(List.of(message(3), message(4)), history.before(Long.MAX_VALUE, 2));
+        assertEquals(List.of(message(2)), history.before(3, 1));
+        assertNull(history.before(3, 2));
+    }
+}
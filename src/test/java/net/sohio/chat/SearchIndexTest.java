@@ -0,0 +1,88 @@
+package net.sohio.chat;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class SearchIndexTest {
+    @Test
+    public void splitsIntoLowercaseWords() {
+        assertEquals(Set.of("hello", "wörld", "42"), SearchIndex.terms("Hello, WÖRLD! hello 42..."));
+        assertEquals(Set.of(), SearchIndex.terms(" -- "));
+    }
+
+    @Test
+    public void findsMessagesWithEveryWordNewestFirst() {
+        var index = new SearchIndex.ChannelIndex();
+        index.add(new Message(1, "robbie", "the quick fox"));
+        index.add(new Message(2, "robbie", "a slow fox"));
+        index.add(new Message(3, "robbie", "quick, quick"));
+        index.add(new Message(5, "robbie", "Quick fox!"));
+        // arrived late from another node
+        index.add(new Message(4, "robbie", "quick fox again"));
+
+        assertArrayEquals(new long[] { 5, 4, 2, 1 }, index.search(Set.of("fox"), Long.MAX_VALUE, 10));
+        assertArrayEquals(new long[] { 5, 4, 1 }, index.search(Set.of("quick", "fox"), Long.MAX_VALUE, 10));
+        assertArrayEquals(new long[0], index.search(Set.of("quick", "dog"), Long.MAX_VALUE, 10));
+    }
+
+    @Test
+    public void pagesByCursor() {
+        var index = new SearchIndex.ChannelIndex();
+        for (long id = 1; id <= 10; id++) {
+            index.add(new Message(id, "robbie", "ping " + id));
+        }
+
+        var first = index.search(Set.of("ping"), Long.MAX_VALUE, 4);
+        assertArrayEquals(new long[] { 10, 9, 8, 7 }, first);
+        assertArrayEquals(new long[] { 6, 5, 4, 3 }, index.search(Set.of("ping"), first[3], 4));
+        assertArrayEquals(new long[] { 2, 1 }, index.search(Set.of("ping"), 3, 4));
+    }
+
+    @Test
+    public void searchesAcrossARetiredMonth(@TempDir Path dir) throws IOException {
+        var retired = List.of(new Message(1, "robbie", "hello there"), new Message(2, "robbie", "hello again"));
+        var stored = List.of(new Message(1001, "robbie", "hello, new month"));
+
+        var archive = new Archive(dir);
+        var writer = archive.writer(1);
+        for (var message : retired) {
+            writer.append(message);
+        }
+        writer.close();
+
+        var index = new SearchIndex.ChannelIndex();
+        for (var message : retired) {
+            index.add(message);
+        }
+        index.add(stored.get(0));
+
+        var hub = new ChannelHub(new ChannelRegistry.Channel(1, "general"), TestDatabase.of(stored), archive, Runnable::run);
+        var ids = index.search(Set.of("hello"), Long.MAX_VALUE, 10);
+        assertArrayEquals(new long[] { 1001, 2, 1 }, ids);
+        assertEquals(List.of(retired.get(0), retired.get(1), stored.get(0)), hub.messages(ids));
+    }
+
+    @Test
+    public void forgetsMonthsRetiredWithoutAnArchive() {
+        var index = new SearchIndex.ChannelIndex();
+        index.add(new Message(1, "robbie", "hello there"));
+        index.add(new Message(2, "robbie", "hello again"));
+        index.add(new Message(1001, "robbie", "hello, new month"));
+
+        index.retire(2);
+        assertArrayEquals(new long[] { 1001 }, index.search(Set.of("hello"), Long.MAX_VALUE, 10));
+        assertArrayEquals(new long[0], index.search(Set.of("there"), Long.MAX_VALUE, 10));
+
+        // a late notification for a retired row stays out
+        index.add(new Message(2, "robbie", "hello again"));
+        assertArrayEquals(new long[] { 1001 }, index.search(Set.of("hello"), Long.MAX_VALUE, 10));
+    }
+}
@@ -0,0 +1,29 @@
+package net.sohio.chat;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import org.junit.jupiter.api.Test;
+
+public class SignedCookieTest {
+    private static SignedCookie cookie = new SignedCookie("0123456789abcdef0123456789abcdef".getBytes());
+
+    @Test
+    public void roundTrips() {
+        assertEquals("robbie", cookie.verify(cookie.sign("robbie")));
+        assertEquals("ünïcode.name", cookie.verify(cookie.sign("ünïcode.name")));
+    }
+
+    @Test
+    public void rejectsTampering() {
+        var signed = cookie.sign("robbie");
+        var other = cookie.sign("admin");
+        // admin's value with robbie's signature
+        var forged = other.substring(0, other.indexOf('.')) + signed.substring(signed.indexOf('.'));
+
+        assertNull(cookie.verify(forged));
+        assertNull(cookie.verify("robbie"));
+        assertNull(cookie.verify("!!!.???"));
+        assertNull(new SignedCookie("another key, another key, 32byte".getBytes()).verify(signed));
+    }
+}
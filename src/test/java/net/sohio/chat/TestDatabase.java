@@ -0,0 +1,47 @@
+package net.sohio.chat;
+
+import java.lang.reflect.Proxy;
+import java.sql.ResultSet;
+import java.util.List;
+
+import javax.sql.DataSource;
+
+/**
+ * A database whose every query answers with the same rows, so code above
+ * JDBC can be driven without Postgres.
+ */
+class TestDatabase {
+    private TestDatabase() {}
+
+    public static DataSource empty() {
+        return of(List.of());
+    }
+
+    public static DataSource of(List<Message> rows) {
+        return (DataSource)stub(DataSource.class, rows);
+    }
+
+    private static Object stub(Class<?> type, List<Message> rows) {
+        if (type == ResultSet.class) return results(rows);
+        return Proxy.newProxyInstance(TestDatabase.class.getClassLoader(), new Class<?>[] { type }, (proxy, method, args) -> {
+            var returns = method.getReturnType();
+            if (returns.isInterface()) return stub(returns, rows);
+            if (returns == boolean.class) return false;
+            if (returns == int.class) return 0;
+            if (returns == long.class) return 0L;
+            return null;
+        });
+    }
+
+    private static ResultSet results(List<Message> rows) {
+        var at = new int[] { -1 };
+        return (ResultSet)Proxy.newProxyInstance(TestDatabase.class.getClassLoader(), new Class<?>[] { ResultSet.class }, (proxy, method, args) -> {
+            return switch (method.getName()) {
+                case "next" -> ++at[0] < rows.size();
+                case "getLong" -> rows.get(at[0]).id();
+                case "getString" -> "username".equals(args[0]) ? rows.get(at[0]).username() : rows.get(at[0]).msg();
+                default -> method.getReturnType() == boolean.class ? false : null;
+            };
+        });
+    }
+}
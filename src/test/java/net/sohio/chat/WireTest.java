@@ -0,0 +1,72 @@
+package net.sohio.chat;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+public class WireTest {
+    private static List<Message> messages = List.of(
+        new Message(Long.MAX_VALUE, "robbie", "hello world"),
+        new Message(2, "ünïcode", "\"quoted\"\nand split"));
+
+    @Test
+    public void binaryIsLengthPrefixed() {
+        var buf = Wire.binary(messages);
+
+        for (var message : messages) {
+            assertEquals(message.id(), buf.getLong());
+            var username = new byte[buf.getInt()];
+            buf.get(username);
+            var msg = new byte[buf.getInt()];
+            buf.get(msg);
+            assertEquals(message.username(), new String(username, StandardCharsets.UTF_8));
+            assertEquals(message.msg(), new String(msg, StandardCharsets.UTF_8));
+        }
+        assertFalse(buf.hasRemaining());
+    }
+
+    @Test
+    public void binaryRecordsShareOneShape() {
+        var header = Wire.BINARY.header("general");
+        var presence = Wire.BINARY.presence(new Presence.Delta(List.of("robbie"), List.of(), null));
+        var update = Wire.binary(messages);
+        var buf = ByteBuffer.allocate(header.remaining() + presence.remaining() + update.remaining())
+            .put(header).put(presence).put(update).flip();
+
+        var ids = new ArrayList<Long>();
+        var firsts = new ArrayList<String>();
+        while (buf.hasRemaining()) {
+            ids.add(buf.getLong());
+            var first = new byte[buf.getInt()];
+            buf.get(first);
+            int second = buf.getInt();
+            buf.position(buf.position() + second);
+            firsts.add(new String(first, StandardCharsets.UTF_8));
+        }
+        assertEquals(List.of(-1L, -2L, Long.MAX_VALUE, 2L), ids);
+        assertEquals(List.of("general", "", "robbie", "ünïcode"), firsts);
+    }
+
+    @Test
+    public void jsonIsOneMessagePerLine() {
+        var buf = Wire.json(messages);
+        var bytes = new byte[buf.remaining()];
+        buf.get(bytes);
+        var lines = new String(bytes, StandardCharsets.UTF_8).split("\n");
+
+        assertEquals(2, lines.length);
+        assertEquals("{\"id\":\"9223372036854775807\",\"username\":\"robbie\",\"msg\":\"hello world\"}", lines[0]);
+    }
+
+    @Test
+    public void htmlIsTheDefault() {
+        assertEquals(Wire.HTML, Wire.of(null));
+        assertEquals(Wire.BINARY, Wire.of("binary"));
+    }
+}